@@ -76,6 +76,15 @@ public class Annotations {
         this.language = language;
     }
 
+    /**
+     * Constructs annotations that were previously read, without reading the files again.
+     * @param annotations annotations as yielded by getAnnotations
+     */
+    public Annotations(Language language, List<Annotation> annotations) {
+        this.language = language;
+        for (Annotation a : annotations) add(a);
+    }
+
     public void read(Map<Path, byte[]> files) {
         for (Map.Entry<Path, byte[]> entry : files.entrySet()) read(entry.getKey(), entry.getValue());
     }
@@ -93,28 +102,37 @@ public class Annotations {
             String line = lines.get(i).trim();
             Annotation a = parse(line, delims[0], delims[1]);
             if (a.isValid) {
-                keys.add(a.key);
                 if (i < lines.size() - 1) {
                     line = lines.get(i + 1);
                     if (!parse(line, delims[0], delims[1]).isValid)
                         a.next = line.trim();
                 }
-                if (Arrays.asList("SOLUTION", "SHOW", "EDIT", "TILE").contains(a.key)) 
-                    solutions.add(p);
-                if (a.key.equals("HIDE")) 
-                    hidden.add(p);
-                if (a.key.equals("CALL HIDDEN"))
-                    hiddenCallFiles.add(p); 
-                if (a.key.equals("HIDDEN")) {
-                    hiddenTestFiles.add(p); 
-                    hidden.add(p);
-                }
                 a.path = p;
-                annotations.add(a);
+                add(a);
             }
         }
     }
 
+    private void add(Annotation a) {
+        Path p = a.path;
+        keys.add(a.key);
+        if (Arrays.asList("SOLUTION", "SHOW", "EDIT", "TILE").contains(a.key)) 
+            solutions.add(p);
+        if (a.key.equals("HIDE")) 
+            hidden.add(p);
+        if (a.key.equals("CALL HIDDEN"))
+            hiddenCallFiles.add(p); 
+        if (a.key.equals("HIDDEN")) {
+            hiddenTestFiles.add(p); 
+            hidden.add(p);
+        }
+        annotations.add(a);
+    }
+
+    public List<Annotation> getAnnotations() {
+        return Collections.unmodifiableList(annotations);
+    }
+
     public Set<Path> getSolutions() {        
         return Collections.unmodifiableSet(solutions);
     }
@@ -0,0 +1,164 @@
+package com.horstmann.codecheck;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A cache of comrun outputs for compile steps, keyed by a hash of the language, the commands,
+ * and the contents of all source and use files that they read. comrun doesn't hand back
+ * compiled artifacts, so an entry holds the outputs of the compile step together with those of
+ * the steps that depend on it. Plan decides which groups of steps can be cached.
+ *
+ * Entries are zip files in a directory, so that they survive restarts. An in-memory index
+ * tracks their sizes and evicts the least recently used ones when the total exceeds maxBytes.
+ */
+public class CompileCache {
+    private final Path dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CompileCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        // Oldest first, so that they are evicted first
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(dir)) {
+            entries = files.filter(p -> p.getFileName().toString().endsWith(".zip"))
+                .sorted(Comparator.comparing(CompileCache::lastModified)).toList();
+        }
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (Path p : entries) {
+            String name = p.getFileName().toString();
+            sizes.put(name.substring(0, name.length() - ".zip".length()), Files.size(p));
+        }
+        List<String> evicted;
+        synchronized (this) {
+            for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                index.put(entry.getKey(), entry.getValue());
+                totalBytes += entry.getValue();
+            }
+            evicted = evict();
+        }
+        delete(evicted);
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key + ".zip");
+    }
+
+    /**
+     * @return the cached outputs, or null if there are none
+     */
+    public Map<Path, byte[]> get(String key) {
+        synchronized (this) {
+            if (!index.containsKey(key)) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        try {
+            Map<Path, byte[]> result = Util.unzip(Files.readAllBytes(path(key)));
+            hits.incrementAndGet();
+            return result;
+        } catch (IOException ex) {
+            // Evicted in the meantime, or damaged
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(String key, Map<Path, byte[]> outputs) throws IOException {
+        byte[] contents = Util.zip(outputs);
+        if (contents.length > maxBytes) return;
+        Path temp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            Files.write(temp, contents);
+            Files.move(temp, path(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        stores.incrementAndGet();
+        List<String> evicted;
+        synchronized (this) {
+            Long previous = index.put(key, (long) contents.length);
+            if (previous != null) totalBytes -= previous;
+            totalBytes += contents.length;
+            evicted = evict();
+        }
+        delete(evicted);
+    }
+
+    private synchronized void remove(String key) {
+        Long size = index.remove(key);
+        if (size != null) totalBytes -= size;
+    }
+
+    /**
+     * Removes the least recently used entries from the index. The caller deletes their
+     * files after releasing the lock, so that no I/O happens while holding it.
+     * @return the keys of the removed entries
+     */
+    private synchronized List<String> evict() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> iter = index.entrySet().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            iter.remove();
+            totalBytes -= eldest.getValue();
+            evictions.incrementAndGet();
+            evicted.add(eldest.getKey());
+        }
+        return evicted;
+    }
+
+    private void delete(List<String> keys) {
+        for (String key : keys) {
+            try {
+                Files.deleteIfExists(path(key));
+            } catch (IOException ex) {
+                // Will be overwritten if the same key is stored again
+            }
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long h = hits.get();
+        long m = misses.get();
+        result.put("hits", h);
+        result.put("misses", m);
+        result.put("hitRate", h + m == 0 ? 0.0 : (double) h / (h + m));
+        result.put("stores", stores.get());
+        result.put("evictions", evictions.get());
+        result.put("entries", index.size());
+        result.put("bytes", totalBytes);
+        result.put("maxBytes", maxBytes);
+        return result;
+    }
+}
@@ -0,0 +1,75 @@
+package com.horstmann.codecheck;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in milliseconds with logarithmic buckets, four per doubling,
+ * so that percentiles are accurate to about 20%. Recording is lock-free.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKETS = 24 * BUCKETS_PER_DOUBLING + 1; // up to about 4.6 hours
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public void record(long millis) {
+        counts.incrementAndGet(bucket(millis));
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        maxMillis.accumulateAndGet(millis, Math::max);
+    }
+
+    private static int bucket(long millis) {
+        if (millis <= 1) return 0;
+        int b = (int) Math.ceil(Math.log(millis) / Math.log(2) * BUCKETS_PER_DOUBLING);
+        return Math.min(b, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return Math.round(Math.pow(2, bucket / (double) BUCKETS_PER_DOUBLING));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percent between 0 and 100
+     * @return the latency that percent of the recorded latencies don't exceed, or 0 if none were recorded
+     */
+    public long percentile(double percent) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBound(i), maxMillis.get());
+        }
+        return maxMillis.get();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long n = count.get();
+        result.put("count", n);
+        result.put("meanMillis", n == 0 ? 0 : totalMillis.get() / n);
+        result.put("p50Millis", percentile(50));
+        result.put("p90Millis", percentile(90));
+        result.put("p95Millis", percentile(95));
+        result.put("p99Millis", percentile(99));
+        result.put("maxMillis", maxMillis.get());
+        return result;
+    }
+}
@@ -0,0 +1,223 @@
+package com.horstmann.codecheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A file map whose contents are only read from the underlying archive when they
+ * are requested. Puts and removes only affect this map, never the archive, so
+ * copies made with the copy constructor can be handed to different requests.
+ *
+ * Note that put and remove yield null for entries that were never read.
+ */
+public class LazyFileMap extends AbstractMap<Path, byte[]> {
+    private static final Object UNREAD = new Object();
+
+    public interface Source {
+        byte[] read(Path path) throws IOException;
+        /**
+         * @return an estimate of the heap that the source retains
+         */
+        long weight();
+        /**
+         * @return a hash of the archive contents, for keying data that is derived from them
+         */
+        String hash();
+    }
+
+    private final Source source;
+    private final TreeMap<Path, Object> entries = new TreeMap<>(); // values are byte[] or UNREAD
+
+    public LazyFileMap(Source source, Set<Path> paths) {
+        this.source = source;
+        for (Path p : paths) entries.put(p, UNREAD);
+    }
+
+    public LazyFileMap(LazyFileMap other) {
+        this.source = other.source;
+        this.entries.putAll(other.entries);
+    }
+
+    /**
+     * Opens a zip file. The central directory and the small entries are read right away, and
+     * the file is closed, so that a cached archive doesn't hold on to a file descriptor. Large
+     * entries are inflated on demand, which fails if the file has changed in the meantime.
+     * @param zipFile the path to the zip file
+     */
+    public static LazyFileMap open(Path zipFile) throws IOException {
+        ZipSource source = new ZipSource(zipFile);
+        return new LazyFileMap(source, source.index.keySet());
+    }
+
+    /**
+     * Wraps files that have already been read into memory.
+     * @param zip the zip file from which the files were read
+     */
+    public static LazyFileMap unzip(byte[] zip) throws IOException {
+        Map<Path, byte[]> files = Util.unzip(zip);
+        long weight = 0;
+        for (byte[] contents : files.values()) weight += contents.length;
+        long sourceWeight = weight;
+        String hash = Util.hash(zip);
+        Source source = new Source() {
+            public byte[] read(Path path) { return files.get(path); }
+            public long weight() { return sourceWeight; }
+            public String hash() { return hash; }
+        };
+        return new LazyFileMap(source, files.keySet());
+    }
+
+    public long weight() {
+        return source.weight();
+    }
+
+    public String hash() {
+        return source.hash();
+    }
+
+    private byte[] resolve(Path key, Object value) {
+        if (value != UNREAD) return (byte[]) value;
+        try {
+            byte[] contents = source.read(key);
+            entries.put(key, contents);
+            return contents;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override public int size() { return entries.size(); }
+    @Override public boolean containsKey(Object key) { return entries.containsKey(key); }
+
+    @Override public byte[] get(Object key) {
+        Object value = entries.get(key);
+        if (value == null) return null;
+        return resolve((Path) key, value);
+    }
+
+    @Override public byte[] put(Path key, byte[] value) {
+        Object previous = entries.put(key, value);
+        return previous == UNREAD ? null : (byte[]) previous;
+    }
+
+    @Override public byte[] remove(Object key) {
+        Object previous = entries.remove(key);
+        return previous == UNREAD ? null : (byte[]) previous;
+    }
+
+    @Override public Set<Path> keySet() {
+        return entries.keySet();
+    }
+
+    @Override public Set<Map.Entry<Path, byte[]>> entrySet() {
+        return new AbstractSet<>() {
+            public int size() { return entries.size(); }
+            public Iterator<Map.Entry<Path, byte[]>> iterator() {
+                Iterator<Map.Entry<Path, Object>> iter = entries.entrySet().iterator();
+                return new Iterator<>() {
+                    public boolean hasNext() { return iter.hasNext(); }
+                    public void remove() { iter.remove(); }
+                    public Map.Entry<Path, byte[]> next() {
+                        Map.Entry<Path, Object> entry = iter.next();
+                        return new Map.Entry<>() {
+                            public Path getKey() { return entry.getKey(); }
+                            public byte[] getValue() {
+                                Object value = entry.getValue();
+                                if (value != UNREAD) return (byte[]) value;
+                                try {
+                                    byte[] contents = source.read(entry.getKey());
+                                    entry.setValue(contents);
+                                    return contents;
+                                } catch (IOException ex) {
+                                    throw new UncheckedIOException(ex);
+                                }
+                            }
+                            public byte[] setValue(byte[] value) {
+                                Object previous = entry.setValue(value);
+                                return previous == UNREAD ? null : (byte[]) previous;
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return entries.keySet().toString(); // Don't read everything
+    }
+
+    private static class ZipSource implements Source {
+        private static final int SHARED_LIMIT = 64 * 1024;
+            // smaller entries (sources, inputs, outputs) are read when opening, larger ones (jars, images) on each read
+        private final Path zipFile;
+        private final Map<Path, ZipEntry> index = new TreeMap<>();
+        private final Map<Path, byte[]> shared = new HashMap<>();
+        private long weight;
+        private String hash;
+
+        ZipSource(Path zipFile) throws IOException {
+            this.zipFile = zipFile;
+            // The central directory has the name, size and CRC of each entry, which is enough to tell contents apart
+            StringBuilder directory = new StringBuilder();
+            try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+                Enumeration<? extends ZipEntry> iter = zip.entries();
+                while (iter.hasMoreElements()) {
+                    ZipEntry entry = iter.nextElement();
+                    String name = entry.getName();
+                    if (!entry.isDirectory() && !name.startsWith("__MACOSX") && !name.endsWith(".DS_Store")) {
+                        Path path = Paths.get(name);
+                        index.put(path, entry);
+                        long size = entry.getSize();
+                        if (size >= 0 && size <= SHARED_LIMIT) {
+                            try (InputStream in = zip.getInputStream(entry)) {
+                                shared.put(path, in.readAllBytes());
+                            }
+                            weight += size;
+                        }
+                        directory.append(name).append(" ").append(size).append(" ").append(entry.getCrc()).append("\n");
+                    }
+                }
+            }
+            hash = Util.hash(directory.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        public byte[] read(Path path) throws IOException {
+            byte[] contents = shared.get(path);
+            if (contents != null) return contents;
+            ZipEntry entry = index.get(path);
+            if (entry == null) return null;
+            try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+                ZipEntry current = zip.getEntry(entry.getName());
+                if (current == null || current.getCrc() != entry.getCrc() || current.getSize() != entry.getSize())
+                    throw new IOException(zipFile + " has changed");
+                try (InputStream in = zip.getInputStream(current)) {
+                    return in.readAllBytes();
+                }
+            }
+        }
+
+        public long weight() {
+            return weight;
+        }
+
+        public String hash() {
+            return hash;
+        }
+    }
+}
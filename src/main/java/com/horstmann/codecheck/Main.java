@@ -18,6 +18,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
 
 
 public class Main { 
@@ -25,7 +26,9 @@ public class Main {
     public static final int DEFAULT_TIMEOUT_MILLIS = 15000;
     public static final int DEFAULT_MAX_OUTPUT_LEN = 100_000;
     public static final String DEFAULT_TOKEN = "line";
-    public static final int MUCH_LONGER = 1000; // if longer than the expected by this amount, truncate 
+    public static final int MUCH_LONGER = 1000; // if longer than the expected by this amount, truncate
+    public static final int DEFAULT_COMRUN_PARALLELISM = 4; 
+    public static final int DEFAULT_COMRUN_TIMEOUT_MILLIS = 30000; // for preparing and compiling, runs get their own time
     
     private int timeoutMillis;
     private int maxOutputLen;
@@ -40,6 +43,12 @@ public class Main {
     private Score score = new Score();
     private Comparison comp = new Comparison();
     private Plan plan;
+    private CompileCache compileCache;
+    private RemoteComrun remoteComrun;
+    private Semaphore comrunPermits;
+    private String submissionId;
+    private String submissionTime;
+    private boolean systemError;
 
     /**
      * Entry point to command line program.
@@ -73,6 +82,31 @@ public class Main {
         report.save(submissionDir, "report");        
     }
 
+    /**
+     * Reuses compile results from earlier runs.
+     * @param compileCache the cache, or null for none
+     */
+    public void setCompileCache(CompileCache compileCache) {
+        this.compileCache = compileCache;
+    }
+
+    /**
+     * Limits the local comrun processes of this run together with those of other runs.
+     * @param comrunPermits permits shared by the runs, or null for no limit
+     */
+    public void setComrunPermits(Semaphore comrunPermits) {
+        this.comrunPermits = comrunPermits;
+    }
+
+    /**
+     * Sends jobs to a shared remote comrun service, instead of one that is made for this
+     * run from com.horstmann.codecheck.comrun.remote.
+     * @param remoteComrun the service, or null
+     */
+    public void setRemoteComrun(RemoteComrun remoteComrun) {
+        this.remoteComrun = remoteComrun;
+    }
+
     private void doSubstitutions(Map<Path, String> submissionFiles, Substitution sub) throws Exception {
         Path mainFile = sub.getFile();
         int n = sub.getSize();
@@ -389,14 +423,43 @@ public class Main {
         }        
     }
     
+    /**
+     * @return the current time, as it is shown in reports
+     */
+    public static String currentTime() {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(new Date());
+    }
+
+    /**
+     * @return the unique ID of the submission in the report of the last run
+     */
+    public String getSubmissionId() {
+        return submissionId;
+    }
+
+    /**
+     * @return the time in the report of the last run
+     */
+    public String getSubmissionTime() {
+        return submissionTime;
+    }
+
+    /**
+     * @return true if the last run was aborted by an unexpected exception
+     */
+    public boolean hadSystemError() {
+        return systemError;
+    }
+
     public void reportComments(Properties metadata) {
-        report.comment("Submission", Util.createPrivateUID());
+        submissionId = Util.createPrivateUID();
+        report.comment("Submission", submissionId);
         // This is just a unique ID, can be used to check against cheating
-         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-         df.setTimeZone(TimeZone.getTimeZone("UTC"));
-         String currentTime = df.format(new Date());
-         report.comment("Time", currentTime);
-         report.footnote(currentTime);
+         submissionTime = currentTime();
+         report.comment("Time", submissionTime);
+         report.footnote(submissionTime);
              
          report.comment("ID", problem.getId());
 
@@ -406,6 +469,24 @@ public class Main {
 
     public Plan run(Map<Path, String> submissionFiles, Map<Path, byte[]> problemFiles, 
             String reportType, Properties metadata, ResourceLoader resourceLoader) throws IOException {
+        return run(submissionFiles, problemFiles, null, reportType, metadata, resourceLoader);
+    }
+
+    /**
+     * @param solutionOutputs solution outputs that were saved with Plan.getSolutionOutputs, or null
+     */
+    public Plan run(Map<Path, String> submissionFiles, Map<Path, byte[]> problemFiles, Map<Path, byte[]> solutionOutputs,
+            String reportType, Properties metadata, ResourceLoader resourceLoader) throws IOException {
+        return run(submissionFiles, problemFiles, null, solutionOutputs, reportType, metadata, resourceLoader);
+    }
+
+    /**
+     * @param parsedProblem the problem parsed from problemFiles, or null to parse it here. 
+     * Only pass a parsed problem if problemFiles has no legacy solution outputs. 
+     * @param solutionOutputs solution outputs that were saved with Plan.getSolutionOutputs, or null
+     */
+    public Plan run(Map<Path, String> submissionFiles, Map<Path, byte[]> problemFiles, Problem parsedProblem,
+            Map<Path, byte[]> solutionOutputs, String reportType, Properties metadata, ResourceLoader resourceLoader) throws IOException {
         long startTime = System.currentTimeMillis();
         boolean scoring = true;
         try {
@@ -421,10 +502,18 @@ public class Main {
                 report = new HTMLReport("Report");
             
             plan = new Plan(resourceLoader.getProperty("com.horstmann.codecheck.debug") != null);
+            String parallelism = resourceLoader.getProperty("com.horstmann.codecheck.comrun.parallelism");
+            plan.setParallelism(parallelism == null ? DEFAULT_COMRUN_PARALLELISM : Integer.parseInt(parallelism.trim()));
+            String comrunTimeout = resourceLoader.getProperty("com.horstmann.codecheck.comrun.timeoutMillis");
+            if (comrunTimeout != null) plan.setComrunTimeout(Integer.parseInt(comrunTimeout.trim()));
+            plan.setCompileCache(compileCache);
+            plan.setComrunPermits(comrunPermits);
+            plan.setStreaming("true".equals(resourceLoader.getProperty("com.horstmann.codecheck.comrun.stream")));
             plan.setReport(report);
             plan.readSolutionOutputs(problemFiles);
+            if (solutionOutputs != null) plan.setSolutionOutputs(solutionOutputs);
 
-            problem = new Problem(problemFiles);
+            problem = parsedProblem != null ? parsedProblem : new Problem(problemFiles);
             plan.setLanguage(problem.getLanguage());
 
             // TODO: This would be nice to have in Problem, except that one might later need to remove checkstyle.xml
@@ -533,8 +622,10 @@ public class Main {
                 }
                 String remoteURL = resourceLoader.getProperty("com.horstmann.codecheck.comrun.remote");            
                 String scriptCommand = resourceLoader.getProperty("com.horstmann.codecheck.comrun.local");  
-                if (remoteURL == null && scriptCommand == null) scriptCommand = "/opt/codecheck/comrun";
-                plan.execute(report, remoteURL, scriptCommand);
+                RemoteComrun remote = remoteComrun;
+                if (remote == null && remoteURL != null && !remoteURL.isEmpty()) remote = new RemoteComrun(remoteURL);
+                if (remote == null && scriptCommand == null) scriptCommand = "/opt/codecheck/comrun";
+                plan.execute(report, remote, scriptCommand);
             }
             
             if (!problem.getInputMode()) { // Don't print submitted or provided files for run-only mode
@@ -553,6 +644,7 @@ public class Main {
                 }
             }
         } catch (Throwable t) {
+            systemError = true;
             if (report != null) report.systemError(t);
             else t.printStackTrace();
         } finally {
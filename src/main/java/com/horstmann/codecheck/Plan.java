@@ -1,35 +1,114 @@
 package com.horstmann.codecheck;
 
 import java.io.IOException;
-import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 public class Plan {
     private Language language;
     private List<Runnable> tasks = new ArrayList<>();
     private Map<Path, byte[]> files = new Util.FileMap();
     private Map<Path, byte[]> outputs = new Util.FileMap();
-    private StringBuilder scriptBuilder = new StringBuilder();
+    private List<Step> steps = new ArrayList<>();
+    private Map<String, Step> lastStepInDirectory = new HashMap<>();
     private int nextID = 0;
     private static int MIN_TIMEOUT = 3; // TODO: Maybe better to switch interleaveio and timeout? 
     private boolean debug;
+    private int parallelism = 1;
+    private Semaphore comrunPermits;
+    private CompileCache compileCache;
+    private boolean streaming;
+    private int comrunTimeoutMillis = Main.DEFAULT_COMRUN_TIMEOUT_MILLIS;
     private Report report;
-    
+    private Map<Step, Long> elapsedMillis = new ConcurrentHashMap<>(); // of the comrun process that executed the step
+    private static final int MAX_COMRUN_ERRORS = 100_000;
+
+    /**
+     * A command of the comrun script. Each command works in one directory, and it depends on
+     * the preceding command in that directory and on the last commands in any directories
+     * that it copies from. Commands that don't depend on each other, directly or indirectly,
+     * can be executed concurrently, by separate comrun processes.
+     */
+    public static class Step {
+        private final String directory;
+        private final String command;
+        private final List<Step> dependencies;
+        private String outputDirectory; // under which comrun reports the outputs
+        private List<Path> reads = new ArrayList<>(); // files and directories of the request
+        private int timeoutMillis; // of runs and unit tests
+
+        private Step(String directory, String command, List<Step> dependencies) {
+            this.directory = directory;
+            this.command = command;
+            this.dependencies = dependencies;
+            this.outputDirectory = directory;
+        }
+
+        public String getDirectory() { return directory; }
+        public String getCommand() { return command; }
+        public List<Step> getDependencies() { return Collections.unmodifiableList(dependencies); }
+    }
+
     public Plan(boolean debug) throws IOException {
         this.debug = debug;
-        if (debug) addScript("debug");        
+    }
+
+    /**
+     * Sets the number of comrun processes that may be used concurrently when executing locally.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Limits the number of local comrun processes of all plans that share the given permits.
+     * Each process takes a permit while it runs.
+     * @param comrunPermits the permits, or null for no limit
+     */
+    public void setComrunPermits(Semaphore comrunPermits) {
+        this.comrunPermits = comrunPermits;
+    }
+
+    public void setCompileCache(CompileCache compileCache) {
+        this.compileCache = compileCache;
+    }
+
+    /**
+     * When executing locally, pipes the request zip into the standard input of comrun
+     * and reads the response zip from its standard output, instead of passing temporary files.
+     * comrun is then invoked with the argument - instead of a file name.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets the time that a local comrun process gets for preparing and compiling. It also gets
+     * the time limits of the runs and unit tests in its script.
+     */
+    public void setComrunTimeout(int millis) {
+        this.comrunTimeoutMillis = millis;
     }
 
     public void setLanguage(Language language) {
@@ -45,17 +124,39 @@ public class Plan {
     }
 
     public void writeSolutionOutputs(Map<Path, byte[]> filesToSave) {
+        Map<Path, byte[]> solutionOutputs = getSolutionOutputs();
+        if (solutionOutputs == null) return;
+        for (Map.Entry<Path, byte[]> entry : solutionOutputs.entrySet())
+            filesToSave.put(Path.of("_outputs").resolve(entry.getKey()), entry.getValue());
+    }
+
+    /**
+     * @return the outputs of compiling and running the solution, or null if anything
+     * failed to compile (in which case they should not be saved)
+     */
+    public Map<Path, byte[]> getSolutionOutputs() {
         for (Map.Entry<Path, byte[]> entry : outputs.entrySet()) {
             Path p = entry.getKey();
             if (p.getName(p.getNameCount() - 1).toString().equals("_errors"))
-               return;
+               return null;
         }
+        Map<Path, byte[]> result = new Util.FileMap();
         for (Map.Entry<Path, byte[]> entry : outputs.entrySet()) {
             Path p = entry.getKey();            
             if (p.getName(0).toString().startsWith("solution")) {
-                filesToSave.put(Path.of("_outputs").resolve(p), entry.getValue());
+                result.put(p, entry.getValue());
             }
         }
+        return result;
+    }
+
+    /**
+     * Uses previously saved solution outputs, so that the solution need not be 
+     * compiled or run again.
+     * @param savedOutputs the result of an earlier getSolutionOutputs
+     */
+    public void setSolutionOutputs(Map<Path, byte[]> savedOutputs) {
+        outputs.putAll(savedOutputs);
     }
 
     public void readSolutionOutputs(Map<Path, byte[]> savedFiles) {
@@ -89,9 +190,123 @@ public class Plan {
     }
     public void addTask(Runnable task) { tasks.add(task); }
     
-    private void addScript(CharSequence command) {
-        scriptBuilder.append(command);
-        scriptBuilder.append("\n");
+    /**
+     * The commands in the order in which they were added, which is an order in which they can
+     * be executed.
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Adds a command that works in the given directory.
+     * @param sourceDirs the directories from which the command copies files
+     */
+    private Step addStep(String directory, String command, String... sourceDirs) {
+        List<Step> dependencies = new ArrayList<>();
+        Step previous = lastStepInDirectory.get(directory);
+        if (previous != null) dependencies.add(previous);
+        Step step = new Step(directory, command, dependencies);
+        for (String sourceDir : sourceDirs) {
+            // Directories of the request, such as use or submission, aren't produced by any step
+            Step source = lastStepInDirectory.get(sourceDir);
+            if (source == null) step.reads.add(Paths.get(sourceDir));
+            else if (!dependencies.contains(source)) dependencies.add(source);
+        }
+        steps.add(step);
+        lastStepInDirectory.put(directory, step);
+        return step;
+    }
+
+    private void addPrepareStep(String directory, String sourceDirs) {
+        addStep(directory, "prepare " + directory + " " + sourceDirs, sourceDirs.trim().split("\\s+"));
+    }
+
+    /**
+     * Yields the key under which the outputs of a group of steps are cached, or null if they
+     * shouldn't be cached because the group doesn't compile anything or isn't the solution
+     * (see reusable).
+     * @param executor the comrun command or URL, since another comrun can yield other outputs
+     */
+    private String compileCacheKey(List<Step> group, String executor) {
+        if (group.stream().noneMatch(step -> step.command.startsWith("compile "))) return null;
+        if (!group.stream().allMatch(step -> step.directory.startsWith("solution"))) return null;
+        MessageDigest digest = Util.sha256();
+        digest.update((executor + "\n" + language.getLanguage() + "\n" + script(group)).getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<Path, byte[]> entry : files.entrySet()) { // sorted by path
+            Path p = entry.getKey();
+            if (group.stream().anyMatch(step -> step.reads.stream().anyMatch(p::startsWith))) {
+                digest.update(("\n" + p + "\n" + entry.getValue().length + "\n").getBytes(StandardCharsets.UTF_8));
+                digest.update(entry.getValue());
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Outputs can be reused for the solution, whose outputs are reused anyway (see 
+     * getSolutionOutputs), if it compiled, its runs are repeatable, and its comrun process 
+     * finished well inside its time limit. On a busy machine, a compile can time out or run 
+     * out of memory, and that shouldn't be remembered. Submissions can behave differently 
+     * from one run to the next.
+     */
+    private boolean reusable(List<Step> group, Map<Path, byte[]> groupOutputs) {
+        if (!group.stream().allMatch(step -> step.directory.startsWith("solution"))) return false;
+        int timeoutMillis = comrunTimeoutMillis;
+        for (Step step : group) timeoutMillis += step.timeoutMillis;
+        for (Step step : group) {
+            if (step.command.startsWith("compile ") && groupOutputs.containsKey(Paths.get(step.directory, "_errors")))
+                return false;
+            Long elapsed = elapsedMillis.get(step);
+            if (elapsed == null || elapsed >= timeoutMillis / 2 || !repeatable(step)) return false;
+        }
+        return true;
+    }
+
+    private Map<Path, byte[]> outputsOf(List<Step> group) {
+        Set<String> outputDirectories = new HashSet<>();
+        for (Step step : group) outputDirectories.add(step.outputDirectory);
+        Map<Path, byte[]> result = new Util.FileMap();
+        for (Map.Entry<Path, byte[]> entry : outputs.entrySet())
+            if (outputDirectories.contains(entry.getKey().getName(0).toString()))
+                result.put(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    private String script(List<Step> steps) {
+        StringBuilder result = new StringBuilder();
+        if (debug) result.append("debug\n");
+        for (Step step : steps) {
+            result.append(step.command);
+            result.append("\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Partitions the steps into groups that don't depend on each other.
+     * @return the groups, each in execution order
+     */
+    private static List<List<Step>> independentGroups(List<Step> steps) {
+        Map<Step, Step> parent = new HashMap<>();
+        for (Step step : steps) {
+            parent.put(step, step);
+            for (Step dependency : step.dependencies)
+                parent.put(root(parent, step), root(parent, dependency));
+        }
+        Map<Step, List<Step>> groups = new LinkedHashMap<>();
+        for (Step step : steps)
+            groups.computeIfAbsent(root(parent, step), k -> new ArrayList<>()).add(step);
+        return new ArrayList<>(groups.values());
+    }
+
+    private static Step root(Map<Step, Step> parent, Step step) {
+        while (parent.get(step) != step) {
+            Step grandparent = parent.get(parent.get(step));
+            parent.put(step, grandparent);
+            step = grandparent;
+        }
+        return step;
     }
 
     public boolean checkCompiled(String compileDir, Report report, Score score) {
@@ -165,9 +380,9 @@ public class Plan {
         List<Path> allSourceFiles = new ArrayList<>();
         allSourceFiles.addAll(sourceFiles);
         allSourceFiles.addAll(dependentSourceFiles);
-        addScript("prepare " + compileDir + " use " + sourceDirs);
+        addPrepareStep(compileDir, "use " + sourceDirs);
         if (!outputs.containsKey(Paths.get(compileDir).resolve("_compile")))
-            addScript("compile " + compileDir + " " + language.getLanguage() + " " + Util.join(allSourceFiles, " "));
+            addStep(compileDir, "compile " + compileDir + " " + language.getLanguage() + " " + Util.join(allSourceFiles, " "));
     }
 
     // TODO maxOutputLen
@@ -178,57 +393,198 @@ public class Plan {
     // for multiple runs in the same directory
     public void run(String compileDir, String runDir, String runID, Path mainFile, String input, String args, int timeout, int maxOutputLen, boolean interleaveIO) {
         if (!compileDir.equals(runDir)) 
-            addScript("prepare " + runDir + " " + compileDir);
+            addPrepareStep(runDir, compileDir);
         addFile(Paths.get("in").resolve(runID), input == null ? "" : input);
-        if (!outputs.containsKey(Paths.get(runDir).resolve("_run")))
-            addScript("run " + runDir + " " + runID + " " + Math.max(MIN_TIMEOUT, (timeout + 500) / 1000) + " " + maxOutputLen + " " + interleaveIO + " " + language.getLanguage() + " " + mainFile + (args == null ? "" : " " + args));
+        if (!outputs.containsKey(Paths.get(runDir).resolve("_run"))) {
+            int seconds = Math.max(MIN_TIMEOUT, (timeout + 500) / 1000);
+            Step step = addStep(runDir, "run " + runDir + " " + runID + " " + seconds + " " + maxOutputLen + " " + interleaveIO + " " + language.getLanguage() + " " + mainFile + (args == null ? "" : " " + args));
+            step.outputDirectory = runID;
+            step.timeoutMillis = 1000 * seconds;
+            step.reads.add(Paths.get("in", runID));
+        }
     }
 
     public void run(String compileDir, String runDir, Path mainFile, String args, String input, Collection<String> outfiles, int timeout, int maxOutputLen, boolean interleaveIO) {
         if (outputs.containsKey(Paths.get(runDir).resolve("_run"))) return;
         run(compileDir, runDir, mainFile, input, args, timeout, maxOutputLen, interleaveIO);
         if (outfiles.size() > 0)
-            addScript("collect " + runDir + " " + Util.join(outfiles, " "));
+            addStep(runDir, "collect " + runDir + " " + Util.join(outfiles, " "));
     }
     
     public void unitTest(String dir, Path mainFile, Collection<Path> dependentSourceFiles, int timeout, int maxOutputLen) {
-        addScript("prepare " + dir + " use submission");
-        addScript("unittest " + dir + " " + Math.max(MIN_TIMEOUT, (timeout + 500) / 1000) + " " + " " + language.getLanguage() + " " + mainFile + " " + Util.join(dependentSourceFiles, " "));
+        addPrepareStep(dir, "use submission");
+        int seconds = Math.max(MIN_TIMEOUT, (timeout + 500) / 1000);
+        Step step = addStep(dir, "unittest " + dir + " " + seconds + " " + " " + language.getLanguage() + " " + mainFile + " " + Util.join(dependentSourceFiles, " "));
+        step.timeoutMillis = 1000 * seconds;
     }    
     
     public void process(String dir, String cmd) {
-        addScript("prepare " + dir + " use submission");
-        addScript("process " + dir + " " + cmd);
+        addPrepareStep(dir, "use submission");
+        addStep(dir, "process " + dir + " " + cmd);
     }
         
-    public void execute(Report report, String remoteURL, String scriptCommand) throws IOException, InterruptedException {
-        files.put(Paths.get("script"), scriptBuilder.toString().getBytes(StandardCharsets.UTF_8));        
-        if (remoteURL == null || remoteURL.isEmpty())
-            executeLocally(scriptCommand, report);
-        else
-            executeRemotely(remoteURL, report);
+    /**
+     * @param remote the remote comrun service, or null to execute locally with scriptCommand
+     */
+    public void execute(Report report, RemoteComrun remote, String scriptCommand) throws IOException, InterruptedException {
+        Map<List<Step>, String> toCache = new LinkedHashMap<>();
+        Set<Step> skipped = new HashSet<>();
+        for (List<Step> group : independentGroups(steps)) {
+            // Only prepare steps are left when the compile and runs were skipped, for example because 
+            // the solution outputs were saved. Nothing uses the directory, so it needn't be prepared.
+            if (group.stream().allMatch(step -> step.command.startsWith("prepare "))) {
+                skipped.addAll(group);
+                continue;
+            }
+            if (compileCache == null) continue;
+            String key = compileCacheKey(group, remote != null ? remote.toString() : scriptCommand);
+            if (key == null) continue;
+            Map<Path, byte[]> groupOutputs = compileCache.get(key);
+            if (groupOutputs == null) toCache.put(group, key);
+            else {
+                outputs.putAll(groupOutputs);
+                skipped.addAll(group);
+            }
+        }
+        List<Step> toExecute = new ArrayList<>();
+        for (Step step : steps)
+            if (!skipped.contains(step)) toExecute.add(step);
+        if (toExecute.isEmpty()) {
+            // Everything was cached or needn't be done
+        } else if (remote == null)
+            executeLocally(scriptCommand, toExecute);
+        else {
+            files.put(Paths.get("script"), script(toExecute).getBytes(StandardCharsets.UTF_8));
+            long start = System.currentTimeMillis();
+            executeRemotely(remote, report);
+            long elapsed = System.currentTimeMillis() - start;
+            for (Step step : toExecute) elapsedMillis.put(step, elapsed);
+        }
+        for (Map.Entry<List<Step>, String> entry : toCache.entrySet()) {
+            Map<Path, byte[]> groupOutputs = outputsOf(entry.getKey());
+            if (reusable(entry.getKey(), groupOutputs)) {
+                try {
+                    compileCache.put(entry.getValue(), groupOutputs);
+                } catch (IOException ex) {
+                    // Only a missed opportunity
+                }
+            }
+        }
         for (Runnable task : tasks) 
             task.run(); 
     }
 
-    private void executeLocally(String scriptCommand, Report report)
+    /**
+     * Tells whether executing the plan again should yield the same outputs. That is not so 
+     * if a run or unit test produced no output, or if one may have timed out, which can happen
+     * when the machine is busy. A step can only have timed out if the comrun process that 
+     * executed it took at least as long as its time limit. Runs after a failed compilation 
+     * don't count, since the compilation fails again.
+     */
+    public boolean isRepeatable() {
+        for (Step step : elapsedMillis.keySet())
+            if (!repeatable(step)) return false;
+        return true;
+    }
+
+    private boolean repeatable(Step step) {
+        if (step.timeoutMillis == 0 || afterFailedCompile(step)) return true;
+        Long elapsed = elapsedMillis.get(step);
+        if (elapsed == null || elapsed >= step.timeoutMillis) return false;
+        byte[] output = outputs.get(Paths.get(step.outputDirectory, "_run"));
+        return output != null && output.length > 0;
+    }
+
+    private boolean afterFailedCompile(Step step) {
+        for (Step dependency : step.dependencies) {
+            if (dependency.command.startsWith("compile ") && !compiled(dependency.directory)) return true;
+            if (afterFailedCompile(dependency)) return true;
+        }
+        return false;
+    }
+
+    private void executeLocally(String scriptCommand, List<Step> steps)
+            throws IOException, InterruptedException {
+        List<List<Step>> groups = independentGroups(steps);
+        if (parallelism == 1 || groups.size() <= 1) {
+            outputs.putAll(runComrun(scriptCommand, steps));
+            return;
+        }
+        // The threads only wait for comrun, so virtual ones suffice
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        Semaphore permits = new Semaphore(parallelism);
+        try {
+            List<Future<Map<Path, byte[]>>> results = new ArrayList<>();
+            for (List<Step> group : groups) {
+                results.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return runComrun(scriptCommand, group);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            for (Future<Map<Path, byte[]>> result : results) {
+                try {
+                    outputs.putAll(result.get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs comrun with the script of the given steps on the files of this plan.
+     * @return the outputs
+     */
+    private Map<Path, byte[]> runComrun(String scriptCommand, List<Step> steps)
+            throws IOException, InterruptedException {
+        Map<Path, byte[]> request = new Util.FileMap();
+        request.putAll(files);
+        request.put(Paths.get("script"), script(steps).getBytes(StandardCharsets.UTF_8));
+        int timeoutMillis = comrunTimeoutMillis;
+        for (Step step : steps) timeoutMillis += step.timeoutMillis;
+        if (comrunPermits != null) comrunPermits.acquire();
+        // Waiting for a permit doesn't count against the time limits
+        long start = System.currentTimeMillis();
+        try {
+            return streaming ? runComrunStreaming(scriptCommand, request, timeoutMillis) 
+                : runComrunWithFiles(scriptCommand, request, timeoutMillis);
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            for (Step step : steps) elapsedMillis.put(step, elapsed);
+            if (comrunPermits != null) comrunPermits.release();
+        }
+    }
+
+    private Map<Path, byte[]> runComrunWithFiles(String scriptCommand, Map<Path, byte[]> request, int timeoutMillis)
             throws IOException, InterruptedException {
         Path requestZip = Files.createTempFile("codecheck-request", ".zip",
             PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));;
         Path responseZip = null;
         try {
             if (debug) System.out.println(requestZip);
-            Files.write(requestZip, Util.zip(files));           
-            int millis = 30000; // TODO`
-            String result = Util.runProcess(scriptCommand + " " + requestZip.toString(), millis);
-            if (debug) System.out.println(result); 
-            String[] lines = result.split("\n");
+            Files.write(requestZip, Util.zip(request));           
+            ProcessRunner runner = new ProcessRunner(scriptCommand + " " + requestZip.toString());
+            runner.setTimeout(timeoutMillis);
+            runner.setMaxOutputBytes(MAX_COMRUN_ERRORS);
+            runner.setKeepLastOutput(true); // The last line is the path of the response zip
+            ProcessRunner.Result result = runner.run();
+            if (debug) System.out.println("comrun: " + result + "\n" + result.getErrors() + result.getOutput()); 
+            String[] lines = result.getOutput().split("\n");
             int n = lines.length - 1;
-            if (lines[n].trim().isEmpty()) n--;
-            responseZip = Paths.get(lines[n]);
-            if (!Files.exists(responseZip))
-                throw new CodeCheckException("comrun failed.\n" + result);
-            outputs.putAll(Util.unzip(Files.readAllBytes(responseZip)));            
+            if (n > 0 && lines[n].trim().isEmpty()) n--;
+            responseZip = Paths.get(lines[n].trim());
+            if (result.isTimedOut() || !Files.exists(responseZip))
+                throw new CodeCheckException("comrun failed: " + result + "\n" + result.getErrors() + result.getOutput());
+            return Util.unzip(Files.readAllBytes(responseZip));            
         } finally {
             if (!debug) {
                 Files.deleteIfExists(requestZip);
@@ -237,30 +593,36 @@ public class Plan {
         }
     }
     
-    private void executeRemotely(String remoteURL, Report report)
-            throws IOException {
+    private Map<Path, byte[]> runComrunStreaming(String scriptCommand, Map<Path, byte[]> request, int timeoutMillis)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(scriptCommand.trim().split("\\s+")));
+        command.add("-");
+        ProcessRunner runner = new ProcessRunner(command);
+        runner.setTimeout(timeoutMillis);
+        runner.setMaxOutputBytes(MAX_COMRUN_ERRORS);
+        runner.setInput(out -> Util.zip(request, out));
+        Map<Path, byte[]> response = new Util.FileMap();
+        ProcessRunner.Result result = runner.run(in -> response.putAll(Util.unzip(in)));
+        if (debug) System.out.println("comrun: " + result + "\n" + result.getErrors());
+        if (!result.succeeded())
+            throw new CodeCheckException("comrun failed: " + result + "\n" + result.getErrors());
+        return response;
+    }
+
+    private void executeRemotely(RemoteComrun remote, Report report)
+            throws IOException, InterruptedException {
         byte[] requestZip = Util.zip(files);
-        int retries = 2;
-        while (retries > 0) {
-            try {
-                byte[] responseZip = Util.fileUpload(remoteURL, "job", "job.zip", requestZip);
-                if (responseZip.length < 2 || !(responseZip[0] == 0x50 && responseZip[1] == 0x4b))
-                	throw new IOException("Remote result not a zip file");
-                outputs.putAll(Util.unzip(responseZip));
-                if (debug) {
-                    Path temp = Files.createTempFile("codecheck-request", ".zip");
-                    System.out.println("Remote request at " + temp);
-                    Files.write(temp, requestZip);
-                    temp = Paths.get(temp.toString().replace("request",  "response"));
-                    System.out.println("Remote result at " + temp);
-                    Files.write(temp, responseZip);
-                }
-                return;
-            } catch (IOException ex) {
-                retries--;
-                if (retries == 0 || !(ex.getMessage().startsWith("Status: 5") || ex instanceof SocketTimeoutException)) // TODO: More elegant
-                    throw ex;
-            }
+        byte[] responseZip = remote.run(requestZip);
+        if (responseZip.length < 2 || !(responseZip[0] == 0x50 && responseZip[1] == 0x4b))
+        	throw new IOException("Remote result not a zip file");
+        outputs.putAll(Util.unzip(responseZip));
+        if (debug) {
+            Path temp = Files.createTempFile("codecheck-request", ".zip");
+            System.out.println("Remote request at " + temp);
+            Files.write(temp, requestZip);
+            temp = Paths.get(temp.toString().replace("request",  "response"));
+            System.out.println("Remote result at " + temp);
+            Files.write(temp, responseZip);
         }
     }
 }
\ No newline at end of file
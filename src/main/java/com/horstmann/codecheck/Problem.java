@@ -7,6 +7,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -18,13 +19,19 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 public class Problem {
     @JsonSerialize(using = TileSerializer.class)
+    @JsonDeserialize(using = TileDeserializer.class)
     public static class Tile {
         public String code;
         public String text;
@@ -49,6 +56,22 @@ public class Problem {
             return Tile.class;
         }
     }
+
+    public static class TileDeserializer extends JsonDeserializer<Tile> {
+        @Override
+        public Tile deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            JsonNode node = parser.getCodec().readTree(parser);
+            Tile tile = new Tile();
+            if (node.isTextual()) {
+                tile.code = node.asText();
+                tile.text = "";
+            } else {
+                tile.code = node.path("code").asText();
+                tile.text = node.path("text").asText();
+            }
+            return tile;
+        }
+    }
     
     public static class EditorState {
         public List<String> editors;
@@ -62,6 +85,32 @@ public class Problem {
         public String description;
     }
 
+    public static class AnnotationData {
+        public String path;
+        public String key;
+        public String args;
+        public String before;
+        public String next;
+    }
+
+    /**
+     * Everything that the constructor derives from the problem files, so that it can be
+     * saved with the problem, and the problem can be reconstructed without parsing it again.
+     * The file maps go from the paths in the problem to the paths in the problem files.
+     */
+    public static class Metadata {
+        public static final int VERSION = 1;
+        public int version = VERSION;
+        public String language;
+        public boolean inputMode;
+        public boolean oldStyle;
+        public Map<String, String> useFiles = new LinkedHashMap<>();
+        public Map<String, String> solutionFiles = new LinkedHashMap<>();
+        public Map<String, String> inputFiles = new LinkedHashMap<>();
+        public List<AnnotationData> annotations = new ArrayList<>();
+        public DisplayData display;
+    }
+
     private Map<Path, byte[]> problemFiles;
     private Map<Path, byte[]> useFiles = new Util.FileMap(); 
         // the files (sources and inputs) from problemFiles that must be copied to the directory 
@@ -70,6 +119,11 @@ public class Problem {
         // the source files from problemFiles that are to be submitted 
     private Map<Path, byte[]> inputFiles = new Util.FileMap();
         // the input files that are to be submitted (in input mode) 
+    private Map<Path, Path> useSources = new HashMap<>(); 
+    private Map<Path, Path> solutionSources = new HashMap<>(); 
+    private Map<Path, Path> inputSources = new HashMap<>(); 
+        // the paths in problemFiles from which the use/solution/input files came
+    private DisplayData displayData; // only set when constructed from metadata
     private Language language;
     private Annotations annotations;
     private boolean inputMode = false;
@@ -101,9 +155,11 @@ public class Problem {
                     String initial = p.getName(0).toString(); 
                     if (initial.equals("student")) {
                         useFiles.put(Util.tail(p), problemFiles.get(p));
+                        useSources.put(Util.tail(p), p);
                     }
                     else if (initial.equals("solution")) {
                         solutionFiles.put(Util.tail(p), problemFiles.get(p));                       
+                        solutionSources.put(Util.tail(p), p);
                     }                   
                 }
             }
@@ -117,12 +173,14 @@ public class Problem {
                     "Input", "*.in", "q.properties", "check.properties",
                     "tracer.js", "param.js", "edit.key", "*.zy")) {
                     useFiles.put(p, problemFiles.get(p));
+                    useSources.put(p, p);
                 }
             }
             annotations.read(useFiles);
             // Move any files annotated with SOLUTION, SHOW or EDIT to solution 
             for (Path p : annotations.getSolutions()) {
                 solutionFiles.put(p, useFiles.get(p));
+                solutionSources.put(p, useSources.remove(p));
                 useFiles.remove(p);
             }
         }
@@ -135,16 +193,19 @@ public class Problem {
             for (Path p : useFilePaths) {
                 if (language.isSource(p) && !annotations.getHidden().contains(p)) {
                     solutionFiles.put(p, useFiles.get(p));
+                    solutionSources.put(p, useSources.remove(p));
                     useFiles.remove(p);
                 }
             }
             inputFiles.put(inputPath, problemFiles.get(inputPath));
+            inputSources.put(inputPath, inputPath);
             for (String runargs : annotations.findAll("ARGS"))
                 for (String arg : runargs.split("\\s+"))
                     if (isTextFile(arg)) {
                         Path argPath = Paths.get(arg);
                         if (useFiles.containsKey(argPath)) {
                             inputFiles.put(argPath, useFiles.get(argPath));
+                            inputSources.put(argPath, useSources.remove(argPath));
                             useFiles.remove(argPath);
                         }
                     }            
@@ -154,6 +215,75 @@ public class Problem {
         }
     }
 
+    private Problem(Metadata metadata, Map<Path, byte[]> problemFiles) {
+        if (metadata.version != Metadata.VERSION) 
+            throw new CodeCheckException("Unsupported problem metadata version " + metadata.version);
+        for (Language l : Language.languages) 
+            if (l.getClass().getName().equals(metadata.language)) language = l;
+        if (language == null) throw new CodeCheckException("Unknown language " + metadata.language);
+        this.problemFiles = problemFiles;
+        String[] delims = language.pseudoCommentDelimiters();
+        start = delims[0];
+        end = delims[1];
+        oldStyle = metadata.oldStyle;
+        inputMode = metadata.inputMode;
+        restore(metadata.useFiles, useFiles, useSources);
+        restore(metadata.solutionFiles, solutionFiles, solutionSources);
+        restore(metadata.inputFiles, inputFiles, inputSources);
+        List<Annotations.Annotation> list = new ArrayList<>();
+        for (AnnotationData data : metadata.annotations) {
+            Annotations.Annotation a = new Annotations.Annotation();
+            a.isValid = true;
+            a.path = Path.of(data.path);
+            a.key = data.key;
+            a.args = data.args;
+            a.before = data.before;
+            a.next = data.next;
+            list.add(a);
+        }
+        annotations = new Annotations(language, list);
+        displayData = metadata.display;
+    }
+
+    private void restore(Map<String, String> paths, Map<Path, byte[]> files, Map<Path, Path> sources) {
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            Path p = Path.of(entry.getKey());
+            Path source = Path.of(entry.getValue());
+            if (!problemFiles.containsKey(source)) 
+                throw new CodeCheckException("Problem metadata doesn't match, " + source + " is missing");
+            files.put(p, problemFiles.get(source));
+            sources.put(p, source);
+        }
+    }
+
+    /**
+     * Reconstructs a problem from the metadata that getMetadata yielded for the same files. 
+     */
+    public static Problem fromMetadata(Metadata metadata, Map<Path, byte[]> problemFiles) {
+        return new Problem(metadata, problemFiles);
+    }
+
+    public Metadata getMetadata() {
+        Metadata metadata = new Metadata();
+        metadata.language = language.getClass().getName();
+        metadata.inputMode = inputMode;
+        metadata.oldStyle = oldStyle;
+        for (Path p : useFiles.keySet()) metadata.useFiles.put(p.toString(), useSources.get(p).toString());
+        for (Path p : solutionFiles.keySet()) metadata.solutionFiles.put(p.toString(), solutionSources.get(p).toString());
+        for (Path p : inputFiles.keySet()) metadata.inputFiles.put(p.toString(), inputSources.get(p).toString());
+        for (Annotations.Annotation a : annotations.getAnnotations()) {
+            AnnotationData data = new AnnotationData();
+            data.path = a.path.toString();
+            data.key = a.key;
+            data.args = a.args;
+            data.before = a.before;
+            data.next = a.next;
+            metadata.annotations.add(data);
+        }
+        metadata.display = getProblemData();
+        return metadata;
+    }
+
 
     public Map<Path, byte[]> getUseFiles() {
         return Collections.unmodifiableMap(useFiles);
@@ -696,6 +826,7 @@ whitespace2 pseudocode2
     private static boolean isTextFile(Path p) { return isTextFile(p.toString()); }
     
     public Problem.DisplayData getProblemData() {
+        if (displayData != null) return displayData;
         DisplayData data = new DisplayData();
         String description = readDescription("index.html");
         if (description == null) { // TODO: Legacy
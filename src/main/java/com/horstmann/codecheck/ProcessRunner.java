@@ -0,0 +1,279 @@
+package com.horstmann.codecheck;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs an external process. Standard output and error are drained while the process runs,
+ * so that a process that writes more than the pipe buffer doesn't stall, and only the first
+ * maxOutputBytes of each are kept. When the timeout expires, the process and all of its
+ * descendants are killed.
+ */
+public class ProcessRunner {
+    public static final int DEFAULT_MAX_OUTPUT_BYTES = 1_000_000;
+
+    public interface InputWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    public interface OutputReader {
+        void read(InputStream in) throws IOException;
+    }
+
+    public static class Result {
+        private final int exitValue;
+        private final boolean timedOut;
+        private final long wallMillis;
+        private final Capture output;
+        private final Capture errors;
+        private final IOException readError;
+
+        private Result(int exitValue, boolean timedOut, long wallMillis, Capture output, Capture errors, IOException readError) {
+            this.exitValue = exitValue;
+            this.timedOut = timedOut;
+            this.wallMillis = wallMillis;
+            this.output = output;
+            this.errors = errors;
+            this.readError = readError;
+        }
+
+        public int getExitValue() { return exitValue; }
+        public boolean isTimedOut() { return timedOut; }
+        public long getWallMillis() { return wallMillis; }
+
+        /**
+         * @return the captured standard output, or the empty string if it was passed to an OutputReader
+         */
+        public String getOutput() { return output.toString(); }
+        public String getErrors() { return errors.toString(); }
+
+        /**
+         * @return the number of bytes that the process wrote to standard output, including those that weren't kept
+         */
+        public long getOutputBytes() { return output.total; }
+        public long getErrorBytes() { return errors.total; }
+        public boolean isTruncated() { return output.truncated() || errors.truncated(); }
+
+        /**
+         * @return the exception that the OutputReader threw, or null
+         */
+        public IOException getReadError() { return readError; }
+
+        public boolean succeeded() {
+            return !timedOut && exitValue == 0 && readError == null;
+        }
+
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            if (timedOut) result.append("timed out");
+            else result.append("exit value ").append(exitValue);
+            result.append(", ").append(wallMillis).append(" ms, ")
+                .append(output.total).append(" bytes output, ")
+                .append(errors.total).append(" bytes errors");
+            if (isTruncated()) result.append(" (truncated)");
+            if (readError != null) result.append(", ").append(readError.getMessage());
+            return result.toString();
+        }
+    }
+
+    private static class Capture {
+        private final int maxBytes;
+        private final boolean keepLast;
+        private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        private long total;
+
+        Capture(int maxBytes, boolean keepLast) {
+            this.maxBytes = maxBytes;
+            this.keepLast = keepLast;
+        }
+
+        void add(byte[] buffer, int n) {
+            total += n;
+            if (keepLast) {
+                kept.write(buffer, 0, n);
+                if (kept.size() > 2 * maxBytes) { // Drop all but the last maxBytes, now and then
+                    byte[] bytes = kept.toByteArray();
+                    kept.reset();
+                    kept.write(bytes, bytes.length - maxBytes, maxBytes);
+                }
+            } else {
+                int room = (int) Math.max(0, maxBytes - (total - n));
+                kept.write(buffer, 0, Math.min(n, room));
+            }
+        }
+
+        void drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) add(buffer, n);
+        }
+
+        boolean truncated() {
+            return total > Math.min(kept.size(), maxBytes);
+        }
+
+        public String toString() {
+            if (kept.size() <= maxBytes) return kept.toString(StandardCharsets.UTF_8);
+            byte[] bytes = kept.toByteArray();
+            return new String(bytes, bytes.length - maxBytes, maxBytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final ExecutorService streamHandlers = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("process-io-", 1).factory());
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "process-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<String> command;
+    private int timeoutMillis = 30000;
+    private int maxOutputBytes = DEFAULT_MAX_OUTPUT_BYTES;
+    private boolean keepLastOutput;
+    private InputWriter input;
+
+    public ProcessRunner(List<String> command) {
+        this.command = new ArrayList<>(command);
+    }
+
+    /**
+     * @param command the program and its arguments, separated by white space
+     */
+    public ProcessRunner(String command) {
+        this(List.of(command.trim().split("\\s+")));
+    }
+
+    public void setTimeout(int millis) {
+        this.timeoutMillis = millis;
+    }
+
+    /**
+     * @param maxOutputBytes the number of bytes of standard output and of standard error that are kept
+     */
+    public void setMaxOutputBytes(int maxOutputBytes) {
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    /**
+     * @param keepLastOutput true to keep the last maxOutputBytes of standard output instead of
+     * the first, for processes that report their result at the end
+     */
+    public void setKeepLastOutput(boolean keepLastOutput) {
+        this.keepLastOutput = keepLastOutput;
+    }
+
+    /**
+     * @param input writes the standard input of the process, on another thread. If not set,
+     * the process gets an empty standard input.
+     */
+    public void setInput(InputWriter input) {
+        this.input = input;
+    }
+
+    public Result run() throws IOException, InterruptedException {
+        return run(null);
+    }
+
+    /**
+     * @param reader reads standard output while the process runs, or null to capture it.
+     * Anything that the reader leaves unread is discarded.
+     */
+    public Result run(OutputReader reader) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).start();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+            timedOut.set(true);
+            destroyTree(process);
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            Future<?> writer = streamHandlers.submit(() -> {
+                try (OutputStream out = process.getOutputStream()) {
+                    if (input != null) input.write(out);
+                } catch (IOException ex) {
+                    // The process exited without reading all of its input, which shows in its exit value
+                }
+            });
+            Capture errors = new Capture(maxOutputBytes, false);
+            Future<?> errorReader = streamHandlers.submit(() -> {
+                try (InputStream err = process.getErrorStream()) {
+                    errors.drain(err);
+                } catch (IOException ex) {
+                    // Process was killed
+                }
+            });
+            Capture output = new Capture(reader == null ? maxOutputBytes : 0, keepLastOutput && reader == null);
+            IOException readError = null;
+            try (InputStream in = process.getInputStream()) {
+                if (reader != null) {
+                    InputStream counted = new FilterInputStream(in) {
+                        public int read() throws IOException {
+                            int b = super.read();
+                            if (b != -1) output.total++;
+                            return b;
+                        }
+
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int n = super.read(b, off, len);
+                            if (n > 0) output.total += n;
+                            return n;
+                        }
+
+                        public void close() {
+                            // The rest is drained below
+                        }
+                    };
+                    try {
+                        reader.read(counted);
+                    } catch (IOException ex) {
+                        readError = ex;
+                    }
+                }
+                // Keep draining so that the process doesn't block on a full pipe
+                try {
+                    output.drain(in);
+                } catch (IOException ex) {
+                    // Process was killed
+                }
+            }
+            int exitValue = process.waitFor();
+            await(errorReader);
+            await(writer);
+            return new Result(exitValue, timedOut.get(), (System.nanoTime() - start) / 1_000_000,
+                output, errors, readError);
+        } finally {
+            timeout.cancel(false);
+            if (process.isAlive()) destroyTree(process);
+        }
+    }
+
+    private static void await(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            // The tasks catch their exceptions
+        }
+    }
+
+    private static void destroyTree(Process process) {
+        // Descendants are no longer found once the process is gone
+        List<ProcessHandle> descendants = process.descendants().toList();
+        process.destroyForcibly();
+        descendants.forEach(ProcessHandle::destroyForcibly);
+    }
+}
@@ -0,0 +1,433 @@
+package com.horstmann.codecheck;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends jobs to remote comrun runners. One instance should be shared by all jobs, since
+ * its HttpClient pools connections (and multiplexes them over HTTP/2 when the runners
+ * support it).
+ *
+ * With several runners, each request goes to the less busy of two randomly chosen healthy
+ * ones, measured by the requests in flight. A runner that fails or times out several times
+ * in a row is ejected for a while. After that, one job is let through as a probe. If it
+ * succeeds, the runner is readmitted. Otherwise it is ejected for twice as long. If all
+ * runners are ejected, the one that is due soonest is used anyway.
+ *
+ * A job whose response takes longer than the hedge percentile of the recent latencies is sent
+ * a second time, to another runner if one is available, and whichever response arrives first
+ * is used. comrun jobs have no side effects, so this only costs a little extra load on the
+ * runners, and cuts off the tail of slow or stuck requests. Hedging starts once enough
+ * latencies have been recorded.
+ */
+public class RemoteComrun {
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final int TRIES = 2;
+    private static final int MAX_TRIES = 3; // when there are enough runners to try each on a different one
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration TIMEOUT = Duration.ofSeconds(90);
+    private static final int EJECT_AFTER_FAILURES = 3;
+    private static final long MIN_EJECTION_MILLIS = 10_000;
+    private static final long MAX_EJECTION_MILLIS = 300_000;
+    private static final ScheduledExecutorService hedgeScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "comrun-hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class StatusException extends IOException {
+        final int status;
+
+        StatusException(int status) {
+            super("Status: " + status);
+            this.status = status;
+        }
+    }
+
+    private static class Endpoint {
+        final URI uri;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        private int consecutiveFailures;
+        private boolean ejected;
+        private boolean probing;
+        private long ejectedUntil; // System.nanoTime
+        private long ejectionMillis = MIN_EJECTION_MILLIS;
+        private long ejections;
+
+        Endpoint(URI uri) {
+            this.uri = uri;
+        }
+
+        synchronized boolean available(long now) {
+            return !ejected || !probing && now - ejectedUntil >= 0;
+        }
+
+        /**
+         * Claims the endpoint for a request. A healthy endpoint takes any number of them. An
+         * ejected one takes a single probe once its ejection has expired.
+         * @return true if the request may be sent
+         */
+        synchronized boolean tryAcquire(long now) {
+            if (!ejected) return true;
+            if (probing || now - ejectedUntil < 0) return false;
+            probing = true;
+            return true;
+        }
+
+        synchronized long ejectedUntil() {
+            return ejected ? ejectedUntil : Long.MIN_VALUE;
+        }
+
+        /**
+         * Called when a request is sent although the endpoint is ejected, since all are.
+         */
+        synchronized void sendingAnyway() {
+            if (ejected) probing = true;
+        }
+
+        synchronized void succeeded() {
+            consecutiveFailures = 0;
+            if (ejected) {
+                ejected = false;
+                probing = false;
+                ejectionMillis = MIN_EJECTION_MILLIS;
+            }
+        }
+
+        synchronized void failed(long now) {
+            failures.incrementAndGet();
+            consecutiveFailures++;
+            if (probing) {
+                ejectionMillis = Math.min(2 * ejectionMillis, MAX_EJECTION_MILLIS);
+                eject(now);
+            } else if (!ejected && consecutiveFailures >= EJECT_AFTER_FAILURES)
+                eject(now);
+        }
+
+        private void eject(long now) {
+            ejected = true;
+            probing = false;
+            ejectedUntil = now + ejectionMillis * 1_000_000;
+            ejections++;
+        }
+
+        /**
+         * Called when a request was cancelled because another one won, so that a probe
+         * can be sent again.
+         */
+        synchronized void cancelled() {
+            probing = false;
+        }
+
+        synchronized Map<String, Object> stats() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("state", !ejected ? "healthy" : probing ? "probing" : "ejected");
+            result.put("inFlight", inFlight.get());
+            result.put("requests", requests.get());
+            result.put("failures", failures.get());
+            result.put("ejections", ejections);
+            result.put("latency", latencies.stats());
+            return result;
+        }
+    }
+
+    private final HttpClient client;
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param urls the URLs of the runners, separated by commas or white space
+     */
+    public RemoteComrun(String urls) {
+        for (String url : urls.trim().split("[,\\s]+"))
+            endpoints.add(new Endpoint(URI.create(url)));
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    }
+
+    /**
+     * @param hedgePercentile the latency percentile after which a job is sent again, or 0 to never
+     * send it again
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Runs a job, retrying on another runner if the runner is unavailable or times out.
+     * @param requestZip the zip file with the script and the files
+     * @return the response zip file
+     */
+    public byte[] run(byte[] requestZip) throws IOException, InterruptedException {
+        try {
+            return runAsync(requestZip).get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    public CompletableFuture<byte[]> runAsync(byte[] requestZip) {
+        jobs.incrementAndGet();
+        String boundary = "===" + Util.createPrivateUID() + "===";
+        byte[] body = multipart(boundary, "job", "job.zip", requestZip);
+        int tries = Math.max(TRIES, Math.min(endpoints.size(), MAX_TRIES));
+        return attempt(boundary, body, tries, ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * @param tried the endpoints that this job was sent to, which are avoided when there are others
+     */
+    private CompletableFuture<byte[]> attempt(String boundary, byte[] body, int tries, Set<Endpoint> tried) {
+        return new Call(boundary, body, tried).start().exceptionallyCompose(ex -> {
+            Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+            if (tries > 1 && retryable(cause)) {
+                retries.incrementAndGet();
+                return attempt(boundary, body, tries - 1, tried);
+            }
+            return CompletableFuture.failedFuture(cause);
+        });
+    }
+
+    private static boolean retryable(Throwable ex) {
+        return ex instanceof StatusException && ((StatusException) ex).status / 100 == 5
+            || ex instanceof HttpTimeoutException
+            || ex instanceof ConnectException; // Another runner may be up
+    }
+
+    /**
+     * Power of two choices: the one with fewer requests in flight among two random available
+     * endpoints. If all are ejected, the one whose ejection expires first.
+     */
+    private Endpoint select(Set<Endpoint> tried) {
+        Endpoint selected = selectAvailable(tried, null);
+        if (selected != null) return selected;
+        selected = Collections.min(endpoints, Comparator.comparingLong(Endpoint::ejectedUntil));
+        selected.sendingAnyway();
+        return selected;
+    }
+
+    /**
+     * Selects among the available endpoints, preferring the untried ones.
+     * @param excluded an endpoint that must not be selected, or null
+     * @return the claimed endpoint, or null if none could be claimed
+     */
+    private Endpoint selectAvailable(Set<Endpoint> tried, Endpoint excluded) {
+        long now = System.nanoTime();
+        List<Endpoint> untried = new ArrayList<>();
+        for (Endpoint e : endpoints)
+            if (e != excluded && !tried.contains(e) && e.available(now)) untried.add(e);
+        Endpoint selected = acquire(untried, now);
+        if (selected != null) return selected;
+        List<Endpoint> all = new ArrayList<>();
+        for (Endpoint e : endpoints)
+            if (e != excluded && e.available(now)) all.add(e);
+        return acquire(all, now);
+    }
+
+    /**
+     * Picks among the candidates and claims the pick, trying others if another job
+     * claimed it first (as the probe of an ejected endpoint).
+     * @return the claimed endpoint, or null if none could be claimed
+     */
+    private static Endpoint acquire(List<Endpoint> candidates, long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!candidates.isEmpty()) {
+            Endpoint selected;
+            if (candidates.size() == 1) selected = candidates.get(0);
+            else {
+                int i = random.nextInt(candidates.size());
+                int j = random.nextInt(candidates.size() - 1);
+                if (j >= i) j++;
+                Endpoint a = candidates.get(i);
+                Endpoint b = candidates.get(j);
+                selected = a.inFlight.get() <= b.inFlight.get() ? a : b;
+            }
+            if (selected.tryAcquire(now)) return selected;
+            candidates.remove(selected);
+        }
+        return null;
+    }
+
+    /**
+     * One try of a job, with the original request and possibly a hedged one.
+     */
+    private class Call {
+        private final String boundary;
+        private final byte[] body;
+        private final Set<Endpoint> tried;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final List<CompletableFuture<?>> sent = new ArrayList<>();
+        private int running;
+        private IOException failure;
+
+        Call(String boundary, byte[] body, Set<Endpoint> tried) {
+            this.boundary = boundary;
+            this.body = body;
+            this.tried = tried;
+        }
+
+        CompletableFuture<byte[]> start() {
+            Endpoint first = send(null);
+            long delay = endpoints.size() > 1 ? hedgeDelayMillis(first) : 0;
+            if (delay > 0) {
+                ScheduledFuture<?> hedge = hedgeScheduler.schedule(() -> send(first), delay, TimeUnit.MILLISECONDS);
+                result.whenComplete((r, ex) -> hedge.cancel(false));
+            }
+            return result;
+        }
+
+        /**
+         * @param slow the endpoint of the request that is hedged, or null for the original request
+         * @return the endpoint to which the request was sent, or null if it wasn't sent
+         */
+        private synchronized Endpoint send(Endpoint slow) {
+            if (result.isDone()) return null;
+            boolean hedged = slow != null;
+            // Sending a hedge to the slow runner itself would only add to its load
+            Endpoint endpoint = hedged ? selectAvailable(tried, slow) : select(tried);
+            if (endpoint == null) return null;
+            if (hedged) hedges.incrementAndGet();
+            tried.add(endpoint);
+            running++;
+            endpoint.requests.incrementAndGet();
+            endpoint.inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            HttpRequest request = HttpRequest.newBuilder(endpoint.uri)
+                .timeout(TIMEOUT)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+            CompletableFuture<HttpResponse<byte[]>> response = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+            sent.add(response); // Cancelling it aborts the exchange
+            response.whenComplete((r, ex) -> completed(endpoint, hedged, start, r, ex));
+            return endpoint;
+        }
+
+        private void completed(Endpoint endpoint, boolean hedged, long start, HttpResponse<byte[]> response, Throwable ex) {
+            endpoint.inFlight.decrementAndGet();
+            long now = System.nanoTime();
+            if (ex instanceof CompletionException) ex = ex.getCause();
+            if (ex instanceof CancellationException) {
+                // The other one won. Recording a lower bound keeps hedges from lowering the percentile.
+                endpoint.latencies.record((now - start) / 1_000_000);
+                endpoint.cancelled();
+                return;
+            }
+            List<CompletableFuture<?>> losers = null;
+            synchronized (this) {
+                running--;
+                if (ex == null && response.statusCode() == 200) {
+                    endpoint.latencies.record((now - start) / 1_000_000);
+                    endpoint.succeeded();
+                    if (result.complete(response.body())) {
+                        if (hedged) hedgeWins.incrementAndGet();
+                        losers = new ArrayList<>(sent);
+                    }
+                } else {
+                    IOException error = ex == null ? new StatusException(response.statusCode())
+                        : ex instanceof IOException ? (IOException) ex : new IOException(ex);
+                    if (ex != null || response.statusCode() / 100 == 5) endpoint.failed(now);
+                    else endpoint.succeeded(); // The runner is fine, the request is not
+                    if (failure == null) failure = error;
+                    if (running == 0) result.completeExceptionally(failure);
+                }
+            }
+            if (losers != null)
+                for (CompletableFuture<?> f : losers) f.cancel(true);
+        }
+    }
+
+    private long hedgeDelayMillis(Endpoint endpoint) {
+        if (hedgePercentile <= 0 || endpoint == null || endpoint.latencies.getCount() < MIN_HEDGE_SAMPLES) return 0;
+        return Math.max(1, endpoint.latencies.percentile(hedgePercentile));
+    }
+
+    private static byte[] multipart(String boundary, String fieldName, String fileName, byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 512);
+        StringBuilder builder = new StringBuilder();
+        builder.append("--").append(boundary)
+            .append("\r\n")
+            .append("Content-Disposition: form-data; name=\"").append(fieldName)
+            .append("\"; filename=\"").append(fileName).append("\"")
+            .append("\r\n")
+            .append("Content-Type: ")
+            .append(URLConnection.guessContentTypeFromName(fileName))
+            .append("\r\n")
+            .append("Content-Transfer-Encoding: binary")
+            .append("\r\n")
+            .append("\r\n");
+        out.writeBytes(builder.toString().getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(bytes);
+        out.writeBytes(("\r\n\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    /**
+     * @param showURIs true to identify the runners by their URIs, false to number them
+     * in the order in which they were configured
+     */
+    public Map<String, Object> stats(boolean showURIs) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("jobs", jobs.get());
+        result.put("retries", retries.get());
+        result.put("hedges", hedges.get());
+        result.put("hedgeWins", hedgeWins.get());
+        result.put("hedgePercentile", hedgePercentile);
+        Map<String, Object> endpointStats = new LinkedHashMap<>();
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint e = endpoints.get(i);
+            endpointStats.put(showURIs ? e.uri.toString() : "runner" + (i + 1), e.stats());
+        }
+        result.put("endpoints", endpointStats);
+        return result;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Endpoint e : endpoints) {
+            if (result.length() > 0) result.append(" ");
+            result.append(e.uri);
+        }
+        return result.toString();
+    }
+}
@@ -13,7 +13,6 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
@@ -24,21 +23,23 @@ import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -46,7 +47,6 @@ import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 public class Util {
-    private static final Random generator = new Random();
 
     // Generics
     
@@ -203,6 +203,20 @@ public class Util {
         });
     }
     
+    // Hashing
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new CodeCheckException(ex); // Every JDK has SHA-256
+        }
+    }
+
+    public static String hash(byte[] contents) {
+        return HexFormat.of().formatHex(sha256().digest(contents));
+    }
+
     // Stack traces, process, etc.
 
     public static String getStackTrace(Throwable t) {
@@ -211,29 +225,6 @@ public class Util {
         return out.toString();
     }
     
-    @SuppressWarnings("deprecation")
-    public static String runProcess(String command, int millis) {
-        try {
-            Process process = Runtime.getRuntime().exec(command);
-            boolean completed = process.waitFor(millis, TimeUnit.MILLISECONDS);
-
-            String err = new String(process.getErrorStream().readAllBytes(), "UTF-8");
-            process.getErrorStream().close();
-            String out = new String(process.getInputStream().readAllBytes(), "UTF-8");
-            process.getInputStream().close();
-            StringBuilder result = new StringBuilder();
-            result.append(err);
-            if (!completed) {
-                process.destroyForcibly();
-                result.append("\nTimeout after ").append(millis).append(" milliseconds\n");
-            }
-            result.append(out);
-            return result.toString();
-        } catch (IOException | InterruptedException ex) {
-            return ex.getMessage();
-        }
-    }
-    
     // Escaping
     
     public static StringBuilder htmlEscape(CharSequence s) {
@@ -297,7 +288,15 @@ public class Util {
     
     public static byte[] zip(Map<Path, byte[]> contents) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        try (ZipOutputStream zout = new ZipOutputStream(bout)) {
+        zip(contents, bout);
+        return bout.toByteArray();
+    }
+
+    /**
+     * Writes a zip file with the given contents to a stream, and closes it.
+     */
+    public static void zip(Map<Path, byte[]> contents, OutputStream out) throws IOException {
+        try (ZipOutputStream zout = new ZipOutputStream(out)) {
             for (Map.Entry<Path, byte[]> entry : contents.entrySet()) {
                 ZipEntry ze = new ZipEntry(entry.getKey().toString());
                 zout.putNextEntry(ze);
@@ -305,7 +304,6 @@ public class Util {
                 zout.closeEntry();
             }
         }
-        return bout.toByteArray();
     }
         
     static class FileMap extends TreeMap<Path, byte[]> {
@@ -340,16 +338,23 @@ public class Util {
     }    
     
     public static Map<Path, byte[]> unzip(byte[] bytes) throws IOException {
+        return unzip(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Reads the entries of a zip file from a stream, as they arrive. The stream is
+     * not closed, and anything after the last entry is not read.
+     */
+    public static Map<Path, byte[]> unzip(InputStream in) throws IOException {
         Map<Path, byte[]> result = new FileMap(); 
-        try (ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bytes))) {
-            ZipEntry entry;
-            while ((entry = zin.getNextEntry()) != null)
-            {
-                String name = entry.getName();
-                if (!entry.isDirectory() && !name.startsWith("__MACOSX") && !name.endsWith(".DS_Store"))
-                    result.put(Paths.get(name), zin.readAllBytes());
-                zin.closeEntry();
-            }
+        ZipInputStream zin = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null)
+        {
+            String name = entry.getName();
+            if (!entry.isDirectory() && !name.startsWith("__MACOSX") && !name.endsWith(".DS_Store"))
+                result.put(Paths.get(name), zin.readAllBytes());
+            zin.closeEntry();
         }
         return result;
     }
@@ -386,57 +391,6 @@ public class Util {
     
     // HTTP
     
-    @SuppressWarnings("deprecation")
-    public static byte[] fileUpload(String urlString, String fieldName, String fileName, byte[] bytes) throws IOException {
-        final int TIMEOUT = 90000; // 90 seconds
-        String boundary = "===" + createPrivateUID() + "===";
-        URL url = new URL(urlString);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setConnectTimeout(TIMEOUT);
-        conn.setReadTimeout(TIMEOUT);
-        conn.setUseCaches(false);
-        conn.setDoOutput(true); 
-        conn.setDoInput(true);
-        conn.setRequestProperty("Content-Type",
-                "multipart/form-data; boundary=" + boundary);
-        OutputStream out = conn.getOutputStream();
-        StringBuilder builder = new StringBuilder();
-        builder.append("--").append(boundary)
-            .append("\r\n")
-            .append("Content-Disposition: form-data; name=\"").append(fieldName)
-            .append("\"; filename=\"").append(fileName).append("\"")
-            .append("\r\n")
-            .append("Content-Type: ")
-            .append(URLConnection.guessContentTypeFromName(fileName))
-            .append("\r\n")
-            .append("Content-Transfer-Encoding: binary")
-            .append("\r\n")
-            .append("\r\n");
-        out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
-        out.write(bytes);
-        builder.delete(0,  builder.length());
-        builder.append("\r\n\r\n--").append(boundary).append("--\r\n");
-        out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
-        out.close();
-        int status = conn.getResponseCode();
-        if (status == HttpURLConnection.HTTP_OK) {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            InputStream in = conn.getInputStream();
-            int bytesRead = -1;
-            byte[] buffer = new byte[1024];
-            while ((bytesRead = in.read(buffer)) != -1) {
-                bout.write(buffer, 0, bytesRead);
-            }
-            in.close();
-            bout.close();
-            conn.disconnect();
-            return bout.toByteArray();
-        } else {
-            conn.disconnect();
-            throw new IOException("Status: " + status);
-        }        
-    }
-    
     @SuppressWarnings("deprecation")
     public static String httpPost(String urlString, String content, String contentType) {
         StringBuilder result = new StringBuilder();
@@ -540,11 +494,11 @@ public class Util {
     
     // TODO Consider using https://github.com/scru128/spec
     public static String createPrivateUID() {
-        return new BigInteger(128, generator).toString(36).toUpperCase();               
+        return new BigInteger(128, ThreadLocalRandom.current()).toString(36).toUpperCase();               
     }
     
     public static String createPublicUID() {
-        return datePrefix() + new BigInteger(128, generator).toString(36);      
+        return datePrefix() + new BigInteger(128, ThreadLocalRandom.current()).toString(36);      
     }
 
     private static String datePrefix() {
@@ -568,12 +522,13 @@ public class Util {
     private static StringBuilder generatePronounceableWord() { 
         StringBuilder word;
         int len = 4;
-        int b = Util.generator.nextInt(2);
+        ThreadLocalRandom generator = ThreadLocalRandom.current(); // Not contended by concurrent requests
+        int b = generator.nextInt(2);
         do {
             word = new StringBuilder();
             for (int i = 0; i < len; i++) { 
                 String s = i % 2 == b ? Util.consonants : vowels;
-                int n = Util.generator.nextInt(s.length());
+                int n = generator.nextInt(s.length());
                 word.append(s.charAt(n));
             }
         } while (isBadWord(word.toString())); // generate a word until we get a non bad word
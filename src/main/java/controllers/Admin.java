@@ -0,0 +1,69 @@
+package controllers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import models.ProblemWarmup;
+
+/**
+ * Administrative operations. They require the key in com.horstmann.codecheck.admin.key, 
+ * sent as a bearer token, and are disabled if no key is configured.
+ */
+@ApplicationScoped
+@jakarta.ws.rs.Path("/admin")
+public class Admin {
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    @Inject
+    private ProblemWarmup warmup;
+
+    @Inject
+    private CodeConfig config;
+
+    /**
+     * @param authorization the Authorization header of the request
+     * @return true if it has the admin key
+     */
+    static boolean authorized(CodeConfig config, String authorization) {
+        String key = config.getString("com.horstmann.codecheck.admin.key");
+        if (key == null || key.isEmpty() || authorization == null) return false;
+        return MessageDigest.isEqual(("Bearer " + key).getBytes(StandardCharsets.UTF_8),
+            authorization.strip().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Starts a warm-up without waiting for it.
+     * @param problems comma-separated repo/problem keys, or null for the configured and hottest problems
+     */
+    @POST
+    @jakarta.ws.rs.Path("/warmup")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response warmup(@HeaderParam("Authorization") String authorization, @QueryParam("problems") String problems) {
+        if (!authorized(config, authorization))
+            return Response.status(Response.Status.FORBIDDEN).entity("Not authorized").type(MediaType.TEXT_PLAIN).build();
+        CompletableFuture<Void> started;
+        if (problems == null || problems.isBlank())
+            started = warmup.warmup();
+        else {
+            List<String> keys = Arrays.stream(problems.split(",")).map(String::strip).filter(s -> !s.isEmpty()).toList();
+            started = warmup.warmup(keys);
+        }
+        String stats = objectMapper.valueToTree(warmup.stats()).toString();
+        if (started == null) // The running warm-up doesn't include the requested problems
+            return Response.status(Response.Status.CONFLICT).entity(stats).type(MediaType.APPLICATION_JSON).build();
+        return Response.accepted(stats).type(MediaType.APPLICATION_JSON).build();
+    }
+}
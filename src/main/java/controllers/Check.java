@@ -1,19 +1,22 @@
 package controllers;
 
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.horstmann.codecheck.Util;
 
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.servlet.http.HttpServletRequest;
@@ -26,19 +29,23 @@ import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.NewCookie;
 import jakarta.ws.rs.core.PathSegment;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 import jakarta.ws.rs.core.UriInfo;
+import models.GradingScheduler;
 import services.CheckService;
 
 @ApplicationScoped
 @jakarta.ws.rs.Path("/")
 public class Check {
 
-    private static final ExecutorService executorService = Executors.newFixedThreadPool(10);
     private ObjectMapper objectMapper = new ObjectMapper();
 
     @Inject
     private CheckService checkService;
 
+    @Inject
+    private GradingScheduler scheduler;
+
     @Context
     private UriInfo uriInfo;
 
@@ -48,7 +55,7 @@ public class Check {
     @POST
     @jakarta.ws.rs.Path("/check")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
-    public Response checkHTML(@Context HttpServletRequest request, MultivaluedMap<String, String> formParams) {
+    public CompletionStage<Response> checkHTML(@Context HttpServletRequest request, MultivaluedMap<String, String> formParams) {
             try {
                 Map<Path, String> submissionFiles = new TreeMap<>();
                 String repo = "";
@@ -84,36 +91,51 @@ public class Check {
                     }
                 }
                 
-                String result = checkService.checkHTML(repo, problem, ccid, submissionFiles);
-
-                // Create a NewCookie using Builder
-                NewCookie newCookie = new NewCookie.Builder("ccid")
-                        .value(ccid)
-                        .path("/")
-                        .maxAge(60 * 60) // 1 hour
-                        .build();
-
-                // Build response with the cookie
-                Response.ResponseBuilder responseBuilder = Response.ok(result).type("text/html");
-                responseBuilder.cookie(newCookie);
-
-                return responseBuilder.build();
+                String cookieValue = ccid;
+                return checkService.checkHTMLAsync(repo, problem, ccid, submissionFiles, scheduler).thenApply(result -> {
+                    // Create a NewCookie using Builder
+                    NewCookie newCookie = new NewCookie.Builder("ccid")
+                            .value(cookieValue)
+                            .path("/")
+                            .maxAge(60 * 60) // 1 hour
+                            .build();
+
+                    // Build response with the cookie
+                    Response.ResponseBuilder responseBuilder = Response.ok(result).type("text/html");
+                    responseBuilder.cookie(newCookie);
+
+                    return responseBuilder.build();
+                }).exceptionally(Check::serverError);
             } catch (Exception ex) {
-                return Response.serverError().entity(Util.getStackTrace(ex)).build();
+                return CompletableFuture.completedFuture(serverError(ex));
             }
     }
 
+    private static Response serverError(Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) ex = ex.getCause();
+        if (ex instanceof GradingScheduler.OverloadedException) {
+            GradingScheduler.OverloadedException overloaded = (GradingScheduler.OverloadedException) ex;
+            return Response.status(overloaded.getStatus())
+                .header("Retry-After", overloaded.getRetryAfterSeconds())
+                .entity(overloaded.getMessage())
+                .type(MediaType.TEXT_PLAIN)
+                .build();
+        }
+        return Response.serverError().entity(Util.getStackTrace(ex)).build();
+    }
+
     // Method for handling form-urlencoded data
     @POST
     @jakarta.ws.rs.Path("/run")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @RunOnVirtualThread
     public Response runFormPost(MultivaluedMap<String, String> params) {
             try {
                 // Handle form-urlencoded data here
-                String result = checkService.runFormPost(params);
+                String result = scheduler.run(GradingScheduler.Priority.INTERACTIVE, () -> checkService.runFormPost(params));
                 return Response.ok(result).type(MediaType.TEXT_PLAIN).build();
             } catch (Exception ex) {
-                return Response.serverError().entity(Util.getStackTrace(ex)).build();
+                return serverError(ex);
             }
     }
 
@@ -121,6 +143,7 @@ public class Check {
     @POST
     @jakarta.ws.rs.Path("/run")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @RunOnVirtualThread
     public Response runFileUpload(
         @Context PathSegment description,
         @Context PathSegment fileUpload) {
@@ -131,10 +154,11 @@ public class Check {
 
             Path filePath = Paths.get(fileUpload.getPath());
             Map<Path, String> submissionFiles = Map.of(filePath, fileContent);
-            String result = checkService.runFileUpload(description.getPath(), submissionFiles);
+            String result = scheduler.run(GradingScheduler.Priority.INTERACTIVE, 
+                () -> checkService.runFileUpload(description.getPath(), submissionFiles));
             return Response.ok(result).type(MediaType.TEXT_PLAIN).build();
         } catch (Exception ex) {
-            return Response.serverError().entity(Util.getStackTrace(ex)).build();
+            return serverError(ex);
         }
 }
 
@@ -142,20 +166,41 @@ public class Check {
     @POST
     @jakarta.ws.rs.Path("/run")
     @Consumes(MediaType.APPLICATION_JSON)
+    @RunOnVirtualThread
     public Response runJSON(JsonNode json) {
             try {
-                ObjectNode resultNode = checkService.runJSON(json);  // Get the result as ObjectNode
+                ObjectNode resultNode = scheduler.run(GradingScheduler.Priority.INTERACTIVE, 
+                    () -> checkService.runJSON(json));  // Get the result as ObjectNode
                 String result = resultNode.toString();  // Convert ObjectNode to JSON string
                 return Response.ok(result).type(MediaType.APPLICATION_JSON).build();  // Send JSON response
             } catch (Exception ex) {
-                return Response.serverError().entity(Util.getStackTrace(ex)).build();
+                return serverError(ex);
+            }
+    }
+
+    // Grades many submissions for one problem, and streams a line of JSON for each as it is graded
+    @POST
+    @jakarta.ws.rs.Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @RunOnVirtualThread
+    public Response checkBatch(JsonNode json) {
+        if (!json.hasNonNull("problem") || !json.path("submissions").isArray())
+            return Response.status(Response.Status.BAD_REQUEST).entity("No problem or submissions").build();
+        StreamingOutput output = out -> {
+            try {
+                checkService.checkBatch(json, scheduler, out);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             }
+        };
+        return Response.ok(output).type("application/x-ndjson").build();
     }
 
     @POST
     @jakarta.ws.rs.Path("/njs")
     @Consumes({ MediaType.APPLICATION_FORM_URLENCODED, MediaType.APPLICATION_JSON })
-    public Response checkNJS() {
+    public CompletionStage<Response> checkNJS() {
             try {
                 String ccid = null;
                 String repo = "ext";
@@ -182,10 +227,12 @@ public class Check {
                     ccid = ccidCookie.orElse(Util.createPronouncableUID());
                 }
 
-                ObjectNode result = checkService.checkNJS(repo, problem, ccid, submissionFiles);
-                return Response.ok(result).type(MediaType.APPLICATION_JSON).header("Set-Cookie", "ccid=" + ccid).build();
+                String cookieValue = ccid;
+                return checkService.checkNJSAsync(repo, problem, ccid, submissionFiles, scheduler)
+                    .thenApply(result -> Response.ok(result).type(MediaType.APPLICATION_JSON).header("Set-Cookie", "ccid=" + cookieValue).build())
+                    .exceptionally(Check::serverError);
             } catch (Exception ex) {
-                return Response.serverError().entity(Util.getStackTrace(ex)).build();
+                return CompletableFuture.completedFuture(serverError(ex));
             }
     }
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package controllers;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import models.CodeCheck;
+import models.GradingScheduler;
+import models.ParametricProblemCache;
+import models.ProblemCache;
+import models.ProblemRepoWatcher;
+import models.ProblemWarmup;
+import models.ScriptEnginePool;
+import models.SolutionOutputStore;
+import models.SubmissionResultCache;
+
+@ApplicationScoped
+@jakarta.ws.rs.Path("/")
+public class Metrics {
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    @Inject
+    private ProblemCache problemCache;
+
+    @Inject
+    private CodeCheck codeCheck;
+
+    @Inject
+    private ParametricProblemCache paramCache;
+
+    @Inject
+    private ProblemWarmup warmup;
+
+    @Inject
+    private ProblemRepoWatcher repoWatcher;
+
+    @Inject
+    private SolutionOutputStore outputStore;
+
+    @Inject
+    private ScriptEnginePool enginePool;
+
+    @Inject
+    private SubmissionResultCache resultCache;
+
+    @Inject
+    private GradingScheduler scheduler;
+
+    @Inject
+    private CodeConfig config;
+
+    @GET
+    @jakarta.ws.rs.Path("/metrics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response metrics(@HeaderParam("Authorization") String authorization) {
+        ObjectNode result = objectMapper.createObjectNode();
+        Map<String, Object> compileCacheStats = codeCheck.compileCacheStats();
+        if (compileCacheStats != null) result.set("compileCache", objectMapper.valueToTree(compileCacheStats));
+        result.set("grading", objectMapper.valueToTree(scheduler.stats()));
+        result.set("parametricProblems", objectMapper.valueToTree(paramCache.stats()));
+        result.set("problemCache", objectMapper.valueToTree(problemCache.stats()));
+        // The addresses of the internal runners are only shown to admins
+        Map<String, Object> remoteComrunStats = codeCheck.remoteComrunStats(Admin.authorized(config, authorization));
+        if (remoteComrunStats != null) result.set("remoteComrun", objectMapper.valueToTree(remoteComrunStats));
+        result.set("repoWatcher", objectMapper.valueToTree(repoWatcher.stats()));
+        result.set("scriptEngines", objectMapper.valueToTree(enginePool.stats()));
+        result.set("solutionOutputs", objectMapper.valueToTree(outputStore.stats()));
+        result.set("submissionResults", objectMapper.valueToTree(resultCache.stats()));
+        result.set("warmup", objectMapper.valueToTree(warmup.stats()));
+        return Response.ok(result.toString()).type(MediaType.APPLICATION_JSON).build();
+    }
+}
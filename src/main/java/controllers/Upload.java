@@ -1,20 +1,18 @@
 package controllers;
 
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.TreeMap;
 
-import javax.script.ScriptException;
-
 import org.apache.commons.text.StringEscapeUtils;
 import org.jboss.resteasy.reactive.RestForm;
 import org.jboss.resteasy.reactive.multipart.FileUpload;
 
 import com.horstmann.codecheck.Util;
 
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.enterprise.context.RequestScoped;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
@@ -27,6 +25,7 @@ import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriInfo;
 import models.CodeCheck;
+import models.GradingScheduler;
 
 @RequestScoped
 @jakarta.ws.rs.Path("/")
@@ -37,6 +36,9 @@ public class Upload {
     @Inject
     private CodeCheck codeCheck;
 
+    @Inject
+    private GradingScheduler scheduler;
+
     @POST
     @jakarta.ws.rs.Path("/uploadFiles")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
@@ -70,6 +72,7 @@ public class Upload {
     @jakarta.ws.rs.Path("/uploadProblem")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.TEXT_HTML)
+    @RunOnVirtualThread
     public Response uploadProblem(@RestForm("problem") FileUpload fileUpload,
                                   @jakarta.ws.rs.core.Context UriInfo uriInfo,
                                   @jakarta.ws.rs.core.Context HttpHeaders headers) {
@@ -83,6 +86,7 @@ public class Upload {
     @jakarta.ws.rs.Path("/uploadProblem/{problem}/{editKey}")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.TEXT_HTML)
+    @RunOnVirtualThread
     public Response uploadProblem(@PathParam("problem") String problem,
                                   @PathParam("editKey") String editKey,
                                   @RestForm("problem") FileUpload fileUpload,
@@ -105,19 +109,26 @@ public class Upload {
             response += "<br><a href=\"" + problemUrl + "\">View Problem</a>";
             
             return Response.ok(response).type(MediaType.TEXT_HTML).build();
+        } catch (GradingScheduler.OverloadedException ex) {
+            return Response.status(ex.getStatus())
+                .header("Retry-After", ex.getRetryAfterSeconds())
+                .entity(ex.getMessage())
+                .type(MediaType.TEXT_PLAIN)
+                .build();
         } catch (Exception ex) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(Util.getStackTrace(ex)).build();
         }
     }
 
     private String checkAndSaveProblem(String problem, Map<Path, byte[]> problemFiles)
-            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
+            throws Exception {
         StringBuilder response = new StringBuilder();
         String report = null;
         if (problemFiles.containsKey(Path.of("tracer.js"))) {
             codeCheck.saveProblem(repo, problem, problemFiles);
         } else {
-            report = codeCheck.checkAndSave(problem, problemFiles);
+            // Runs the solution, so it competes with student checks for the sandboxes
+            report = scheduler.run(GradingScheduler.Priority.UPLOAD, () -> codeCheck.checkAndSave(problem, problemFiles));
         }
         response.append("<html><head><title></title><meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"/>");
         response.append("<body style=\"font-family: sans-serif\">");
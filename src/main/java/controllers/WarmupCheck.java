@@ -0,0 +1,24 @@
+package controllers;
+
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import models.ProblemWarmup;
+
+/**
+ * Keeps the instance out of the load balancer until the startup warm-up has completed.
+ */
+@Readiness
+@ApplicationScoped
+public class WarmupCheck implements HealthCheck {
+    @Inject
+    private ProblemWarmup warmup;
+
+    @Override
+    public HealthCheckResponse call() {
+        return HealthCheckResponse.named("warmup").status(warmup.isReady()).build();
+    }
+}
@@ -4,30 +4,43 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import javax.script.Invocable;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.horstmann.codecheck.CompileCache;
+import com.horstmann.codecheck.LazyFileMap;
 import com.horstmann.codecheck.Main;
 import com.horstmann.codecheck.Plan;
 import com.horstmann.codecheck.Problem;
+import com.horstmann.codecheck.RemoteComrun;
 import com.horstmann.codecheck.ResourceLoader;
 import com.horstmann.codecheck.Util;
 
@@ -39,15 +52,65 @@ import jdk.security.jarsigner.JarSigner;
 @ApplicationScoped
 public class CodeCheck {
     private static final Logger logger = LoggerFactory.getLogger(CodeCheck.class);
+    /*
+     * Evaluates each source like a separate top-level script and stores the results. The first
+     * evaluation yields a string so that Nashorn doesn't type the call site as a number, which
+     * would turn later integer results into doubles (and 3 into 3.0 in the problem text).
+     */
+    private static final String EVALUATE_ALL = "(function(sources, results) {\n"
+        + "  for (var i = -1; i < sources.length; i++) {\n"
+        + "    var value = (0, eval)(i < 0 ? \"''\" : sources[i]);\n"
+        + "    if (i >= 0) results[i] = value === undefined ? null : value;\n"
+        + "  }\n"
+        + "})";
+    private static final int MAX_BATCH_TRIES = 3;
+    private static final int DEFAULT_MAX_COMRUN_PROCESSES = 10; // the default number of grading slots
+
+    /**
+     * Receives the reports of a batch.
+     */
+    public interface BatchListener {
+        /**
+         * @param index the index of the submission in the batch
+         * @param report the report, or null if grading failed
+         * @param error the reason why grading failed, or null
+         */
+        void graded(int index, String report, Throwable error) throws IOException;
+    }
+
+    /**
+     * The parse and solution outputs of a problem, shared among the submissions of a batch.
+     */
+    private static class SharedProblem {
+        final Problem problem;
+        final Map<Path, byte[]> solutionOutputs;
+
+        SharedProblem(Problem problem, Map<Path, byte[]> solutionOutputs) {
+            this.problem = problem;
+            this.solutionOutputs = solutionOutputs;
+        }
+    }
 
     private final ProblemConnector probConn;
+    private final SolutionOutputStore outputStore;
+    private final ScriptEnginePool enginePool;
+    private final ParametricProblemCache paramCache;
+    private final SubmissionResultCache resultCache;
+    private CompileCache compileCache;
+    private RemoteComrun remoteComrun;
+    private final Semaphore comrunPermits;
     private final CodeConfig config;
     private JarSigner signer;
     private final ResourceLoader resourceLoader;
 
     @Inject
-    public CodeCheck(ProblemConnector probConn, CodeConfig config) {
+    public CodeCheck(ProblemConnector probConn, SolutionOutputStore outputStore, ScriptEnginePool enginePool,
+            ParametricProblemCache paramCache, SubmissionResultCache resultCache, CodeConfig config) {
         this.probConn = probConn;
+        this.outputStore = outputStore;
+        this.enginePool = enginePool;
+        this.paramCache = paramCache;
+        this.resultCache = resultCache;
         this.config = config; // Assign injected Config instance
         this.resourceLoader = new ResourceLoader() {
             @Override
@@ -72,6 +135,49 @@ public class CodeCheck {
         } catch (Exception e) {
             logger.warn("Cannot load keystore", e);
         }
+
+        String compileCacheDir = config.getString("com.horstmann.codecheck.compileCache.dir");
+        if (compileCacheDir != null) {
+            long maxBytes = config.getOptionalValue("com.horstmann.codecheck.compileCache.maxBytes", Long.class).orElse(1L << 30);
+            try {
+                compileCache = new CompileCache(Path.of(compileCacheDir), maxBytes);
+            } catch (IOException e) {
+                logger.warn("Cannot open compile cache", e);
+            }
+        }
+
+        // Shared by all requests, so that concurrent gradings don't start more processes than the machine can take
+        comrunPermits = new Semaphore(config.getOptionalValue("com.horstmann.codecheck.comrun.maxProcesses", Integer.class)
+            .orElse(DEFAULT_MAX_COMRUN_PROCESSES));
+
+        String remoteURL = config.getString("com.horstmann.codecheck.comrun.remote");
+        if (remoteURL != null && !remoteURL.isEmpty()) {
+            remoteComrun = new RemoteComrun(remoteURL);
+            remoteComrun.setHedgePercentile(config.getOptionalValue("com.horstmann.codecheck.comrun.hedgePercentile", Double.class)
+                .orElse(RemoteComrun.DEFAULT_HEDGE_PERCENTILE));
+        }
+    }
+
+    private Main newMain() {
+        Main main = new Main();
+        main.setCompileCache(compileCache);
+        main.setRemoteComrun(remoteComrun);
+        main.setComrunPermits(comrunPermits);
+        return main;
+    }
+
+    /**
+     * @return the statistics of the compile cache, or null if there is none
+     */
+    public Map<String, Object> compileCacheStats() {
+        return compileCache == null ? null : compileCache.stats();
+    }
+
+    /**
+     * @return the statistics of the remote comrun service, or null if there is none
+     */
+    public Map<String, Object> remoteComrunStats(boolean showURIs) {
+        return remoteComrun == null ? null : remoteComrun.stats(showURIs);
     }
 
     public Map<Path, byte[]> loadProblem(String repo, String problemName, String studentId)
@@ -83,69 +189,92 @@ public class CodeCheck {
 
     public boolean replaceParametersInDirectory(String studentId, Map<Path, byte[]> problemFiles)
             throws ScriptException, NoSuchMethodException, IOException {
+        Map<Path, byte[]> replaced = parameterReplacements(studentId, problemFiles);
+        if (replaced == null) return false;
+        problemFiles.putAll(replaced);
+        return true;
+    }
+
+    /**
+     * Runs param.js for the given student.
+     * @return the files whose contents change through parameter substitution, or null if the problem isn't parametric
+     */
+    private Map<Path, byte[]> parameterReplacements(String studentId, Map<Path, byte[]> problemFiles)
+            throws ScriptException, NoSuchMethodException, IOException {
         Path paramPath = Path.of("param.js");
-        if (problemFiles.containsKey(paramPath)) {
-            ScriptEngineManager engineManager = new ScriptEngineManager();
-            ScriptEngine engine = engineManager.getEngineByName("nashorn");
-            InputStream in = resourceLoader.loadResource("preload.js");
-            engine.eval(new InputStreamReader(in, StandardCharsets.UTF_8));
+        if (!problemFiles.containsKey(paramPath)) return null;
+        Map<Path, byte[]> replaced = new HashMap<>();
+        try (ScriptEnginePool.Lease lease = enginePool.borrow()) {
+            ScriptEngine engine = lease.engine();
             // Seeding unique student id
             ((Invocable) engine).invokeMethod(engine.get("Math"), "seedrandom", studentId);
-            engine.eval(Util.getString(problemFiles, paramPath));
+            lease.compile(Util.getString(problemFiles, paramPath)).eval();
+            Map<?, ?> delimiters = (Map<?, ?>) engine.get("delimiters");
+            String leftDelimiter = (String) delimiters.get("0");
+            String rightDelimiter = (String) delimiters.get("1");
+            Map<Path, ParameterTemplate> templates = new LinkedHashMap<>();
+            List<String> expressions = new ArrayList<>();
             for (Path p : Util.filterNot(problemFiles.keySet(), "param.js", "*.jar", "*.gif", "*.png", "*.jpg", "*.wav")) {
-                String contents = new String(problemFiles.get(p), StandardCharsets.UTF_8);
-                String result = replaceParametersInFile(contents, engine);
-                if (result != null)
-                    problemFiles.put(p, result.getBytes(StandardCharsets.UTF_8));
-            }
-            return true;
-        } else
-            return false;
-    }
-
-    private String replaceParametersInFile(String contents, ScriptEngine engine) throws ScriptException, IOException {
-        if (contents == null)
-            return null; // Happens if not UTF-8
-        String leftDelimiter = (String) engine.eval("delimiters[0]");
-        int leftLength = leftDelimiter.length();
-        String rightDelimiter = (String) engine.eval("delimiters[1]");
-        int rightLength = rightDelimiter.length();
-        StringBuilder result = new StringBuilder();
-        // TODO: Use length of delimiters
-        int from = 0;
-        int to = -rightLength;
-        boolean done = false;
-        while (!done) {
-            from = contents.indexOf(leftDelimiter, to + rightLength);
-            if (from == -1) {
-                if (to == -1)
-                    return null; // No delimiter in file
-                else {
-                    result.append(contents.substring(to + rightLength));
-                    done = true;
-                }
-            } else {
-                int nextTo = contents.indexOf(rightDelimiter, from + leftLength);
-                if (nextTo == -1)
-                    return null; // Delimiters don't match--might be binary file
-                else {
-                    result.append(contents.substring(to + rightLength, from));
-                    to = nextTo;
-                    String toEval = contents.substring(from + leftLength, to);
-                    if (toEval.contains(leftDelimiter))
-                        return null; // Nested
-                    result.append("").append(engine.eval(toEval));
+                ParameterTemplate template = ParameterTemplate.parse(Util.getString(problemFiles, p), leftDelimiter, rightDelimiter);
+                if (template != null) {
+                    templates.put(p, template);
+                    expressions.addAll(template.getExpressions());
                 }
             }
+            if (expressions.isEmpty()) return replaced;
+            List<Object> values = evaluateAll(lease, expressions);
+            int offset = 0;
+            for (Map.Entry<Path, ParameterTemplate> entry : templates.entrySet()) {
+                ParameterTemplate template = entry.getValue();
+                // The placeholders before a bad one are evaluated all the same, as they always were, 
+                // since they may draw random numbers that later files depend on
+                if (template.isComplete())
+                    replaced.put(entry.getKey(), template.fill(values, offset).getBytes(StandardCharsets.UTF_8));
+                offset += template.getExpressions().size();
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Evaluates the placeholder expressions, in order. Simple expressions are evaluated in Java.
+     * Each run of other expressions is evaluated with a single call into the script engine,
+     * before any later expression, since it might change the variables that those use.
+     */
+    private static List<Object> evaluateAll(ScriptEnginePool.Lease lease, List<String> expressions)
+            throws ScriptException, NoSuchMethodException {
+        Map<String, Object> globals = lease.engine().getBindings(ScriptContext.ENGINE_SCOPE);
+        Object[] values = new Object[expressions.size()];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < expressions.size(); i++) {
+            ParameterExpression simple = ParameterExpression.parse(expressions.get(i));
+            if (simple == null) {
+                pending.add(i);
+                continue;
+            }
+            evaluateInEngine(lease, expressions, pending, values);
+            Object value = simple.evaluate(globals);
+            if (value == ParameterExpression.UNKNOWN) pending.add(i);
+            else values[i] = value;
         }
-        return result.toString();
+        evaluateInEngine(lease, expressions, pending, values);
+        return Arrays.asList(values);
+    }
+
+    private static void evaluateInEngine(ScriptEnginePool.Lease lease, List<String> expressions, List<Integer> pending,
+            Object[] values) throws ScriptException, NoSuchMethodException {
+        if (pending.isEmpty()) return;
+        String[] sources = new String[pending.size()];
+        for (int i = 0; i < sources.length; i++) sources[i] = expressions.get(pending.get(i));
+        Object[] results = new Object[sources.length];
+        Object evaluator = lease.compile(EVALUATE_ALL).eval();
+        ((Invocable) lease.engine()).invokeMethod(evaluator, "call", null, sources, results);
+        for (int i = 0; i < results.length; i++) values[pending.get(i)] = results[i];
+        pending.clear();
     }
 
     public Map<Path, byte[]> loadProblem(String repo, String problemName) throws IOException {
-        Map<Path, byte[]> result;
-        byte[] zipFile = probConn.read(repo, problemName);
-        result = Util.unzip(zipFile);
-        return result;
+        return probConn.readFiles(repo, problemName);
     }
 
     public void saveProblem(String repo, String problem, Map<Path, byte[]> problemFiles) throws IOException {
@@ -155,21 +284,233 @@ public class CodeCheck {
 
     public String run(String reportType, String repo, String problem, String ccid, Map<Path, String> submissionFiles)
             throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
-        Map<Path, byte[]> problemFiles = loadProblem(repo, problem, ccid);
-        // Save solution outputs if not parametric and doesn't have already have solution output
-        boolean save = !problemFiles.containsKey(Path.of("param.js")) &&
-                !problemFiles.keySet().stream().anyMatch(p -> p.startsWith("_outputs"));
+        return run(reportType, repo, problem, ccid, probConn.readFiles(repo, problem), submissionFiles);
+    }
+
+    /**
+     * Loads the problem without blocking, then grades when the scheduler has a free slot.
+     * A submission that was graded before is answered from the cache without waiting for a slot.
+     */
+    public CompletionStage<String> runAsync(String reportType, String repo, String problem, String ccid, 
+            Map<Path, String> submissionFiles, GradingScheduler scheduler) {
+        return probConn.readFilesAsync(repo, problem).thenCompose(problemFiles -> {
+            String cachedReport = cachedReport(reportType, repo, problem, ccid, problemFiles, submissionFiles);
+            if (cachedReport != null) return CompletableFuture.completedFuture(cachedReport);
+            return scheduler.submit(() -> 
+                runUncached(reportType, repo, problem, ccid, problemFiles, null, submissionFiles));
+        });
+    }
+
+    private String run(String reportType, String repo, String problem, String ccid, LazyFileMap problemFiles, 
+            Map<Path, String> submissionFiles)
+            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
+        String cachedReport = cachedReport(reportType, repo, problem, ccid, problemFiles, submissionFiles);
+        if (cachedReport != null) return cachedReport;
+        return runUncached(reportType, repo, problem, ccid, problemFiles, null, submissionFiles);
+    }
+
+    private String cachedReport(String reportType, String repo, String problem, String ccid, LazyFileMap problemFiles, 
+            Map<Path, String> submissionFiles) {
+        return resultCache.get(SubmissionResultCache.key(reportType, repo, problem, problemFiles.hash(), ccid, submissionFiles));
+    }
+
+    /**
+     * Grades many submissions for the same problem, at bulk priority. The problem is loaded
+     * once. The first submission is graded by itself, so that the solution is compiled and run
+     * once, and the others reuse its outputs and the parsed problem. (Parametric problems have
+     * solution outputs for each student.) The others are handed to the scheduler as earlier ones
+     * finish, no more at a time than it has slots, so that a batch doesn't crowd out other work
+     * or fill up the queue. Submissions that are preempted or rejected are retried later.
+     * @param ccids the student IDs, one for each submission
+     * @param listener receives the reports as they are ready, one call at a time. If it throws an
+     * IOException, the remaining submissions are not graded. If it throws another exception, it
+     * receives that exception as the error of the submission.
+     */
+    public void runBatch(String reportType, String repo, String problem, List<String> ccids,
+            List<Map<Path, String>> submissions, GradingScheduler scheduler, BatchListener listener)
+            throws IOException, InterruptedException {
+        LazyFileMap problemFiles = probConn.readFiles(repo, problem);
+        Batch batch = new Batch(reportType, repo, problem, ccids, submissions, problemFiles, scheduler, listener);
+        if (submissions.isEmpty()) return;
+        batch.grade(0, null);
+        SharedProblem shared = null;
+        if (usesStoredOutputs(problemFiles)) {
+            try {
+                Problem parsedProblem = probConn.readProblem(repo, problem, new LazyFileMap(problemFiles));
+                Map<Path, byte[]> solutionOutputs = outputStore.read(repo, problem, problemFiles.hash());
+                if (solutionOutputs != null) shared = new SharedProblem(parsedProblem, solutionOutputs);
+            } catch (RuntimeException ex) {
+                // Each submission reports the error
+            }
+        }
+        SharedProblem sharedProblem = shared;
+        Semaphore slots = new Semaphore(scheduler.getSlots());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 1; i < submissions.size() && batch.listenerError == null; i++) {
+                slots.acquire();
+                int index = i;
+                executor.submit(() -> {
+                    try {
+                        batch.grade(index, sharedProblem);
+                    } finally {
+                        slots.release();
+                    }
+                    return null;
+                });
+            }
+        }
+        if (batch.listenerError != null) throw batch.listenerError;
+    }
+
+    private class Batch {
+        final String reportType;
+        final String repo;
+        final String problem;
+        final List<String> ccids;
+        final List<Map<Path, String>> submissions;
+        final LazyFileMap problemFiles;
+        final GradingScheduler scheduler;
+        final BatchListener listener;
+        // A lock rather than synchronized, so that a virtual thread waiting to report isn't pinned
+        final ReentrantLock listenerLock = new ReentrantLock();
+        volatile IOException listenerError;
+
+        Batch(String reportType, String repo, String problem, List<String> ccids, List<Map<Path, String>> submissions,
+                LazyFileMap problemFiles, GradingScheduler scheduler, BatchListener listener) {
+            this.reportType = reportType;
+            this.repo = repo;
+            this.problem = problem;
+            this.ccids = ccids;
+            this.submissions = submissions;
+            this.problemFiles = problemFiles;
+            this.scheduler = scheduler;
+            this.listener = listener;
+        }
+
+        /**
+         * Grades a submission and hands the report or error to the listener. Any failure of the 
+         * submission is reported, so that every submission gets a report or an error.
+         */
+        void grade(int index, SharedProblem shared) throws InterruptedException {
+            String report = null;
+            Throwable error = null;
+            try {
+                // A resubmission that was graded before doesn't need a slot
+                report = cachedReport(reportType, repo, problem, ccids.get(index), problemFiles, 
+                    submissions.get(index));
+                for (int tries = 1; report == null; tries++) {
+                    try {
+                        report = scheduler.run(GradingScheduler.Priority.BULK, () -> runUncached(reportType, repo, 
+                            problem, ccids.get(index), new LazyFileMap(problemFiles), shared, submissions.get(index)));
+                    } catch (GradingScheduler.OverloadedException ex) {
+                        if (tries == MAX_BATCH_TRIES) throw ex;
+                        Thread.sleep(ex.getRetryAfterSeconds() * 1000);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                error = ex;
+            }
+            listenerLock.lock();
+            try {
+                if (listenerError != null) return;
+                try {
+                    listener.graded(index, report, error);
+                } catch (RuntimeException ex) {
+                    // The report couldn't be handed over, so hand over the failure instead
+                    listener.graded(index, null, ex);
+                }
+            } catch (IOException ex) {
+                listenerError = ex;
+            } catch (RuntimeException ex) {
+                listenerError = new IOException(ex);
+            } finally {
+                listenerLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Grades a submission that isn't in the result cache.
+     * @param shared the parsed problem and solution outputs, or null to look them up
+     */
+    private String runUncached(String reportType, String repo, String problem, String ccid, LazyFileMap problemFiles, 
+            SharedProblem shared, Map<Path, String> submissionFiles)
+            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
+        String hash = problemFiles.hash();
+        String resultKey = SubmissionResultCache.key(reportType, repo, problem, hash, ccid, submissionFiles);
+        Map<Path, byte[]> solutionOutputs = null;
+        Problem parsedProblem = null;
+        boolean save = false;
+        // Reuse this student's instance of a parametric problem if they submitted before
+        ParametricProblemCache.Instance instance = null;
+        Map<Path, byte[]> replaced = null;
+        boolean parametric = problemFiles.containsKey(Path.of("param.js"));
+        if (parametric) {
+            instance = paramCache.get(repo, problem, hash, ccid);
+            if (instance == null)
+                replaced = parameterReplacements(ccid, problemFiles);
+            else {
+                replaced = instance.files;
+                // Legacy solution outputs in the problem were not produced for this student
+                if (!hasLegacyOutputs(problemFiles)) solutionOutputs = instance.solutionOutputs;
+            }
+            problemFiles.putAll(replaced);
+        }
+        // Use saved solution outputs if not parametric and doesn't have legacy solution output in the problem
+        if (shared != null && usesStoredOutputs(problemFiles)) {
+            parsedProblem = shared.problem;
+            solutionOutputs = shared.solutionOutputs;
+        } else if (usesStoredOutputs(problemFiles)) {
+            try {
+                parsedProblem = probConn.readProblem(repo, problem, problemFiles);
+            } catch (RuntimeException ex) {
+                // Let Main parse it again and report the error
+            }
+            solutionOutputs = outputStore.read(repo, problem, hash);
+            if (solutionOutputs == null) {
+                save = outputStore.claim(repo, problem, hash);
+                if (!save) // Another request started computing them in the meantime
+                    solutionOutputs = outputStore.read(repo, problem, hash);
+            }
+        }
         Properties metaData = new Properties();
         metaData.put("User", ccid);
         metaData.put("Problem", (repo + "/" + problem).replaceAll("[^\\pL\\pN_/-]", ""));
 
-        Plan plan = new Main().run(submissionFiles, problemFiles, reportType, metaData, resourceLoader);
-        if (save) {
-            plan.writeSolutionOutputs(problemFiles);
-            saveProblem(repo, problem, problemFiles);
+        try {
+            Main main = newMain();
+            Plan plan = main.run(submissionFiles, problemFiles, parsedProblem, solutionOutputs, reportType, metaData, resourceLoader);
+            if (save) {
+                Map<Path, byte[]> outputs = plan.getSolutionOutputs();
+                if (outputs != null) outputStore.write(repo, problem, hash, outputs);
+            }
+            if (parametric) {
+                Map<Path, byte[]> outputs = hasLegacyOutputs(problemFiles) ? null : plan.getSolutionOutputs();
+                if (instance == null || instance.solutionOutputs == null && outputs != null)
+                    paramCache.put(repo, problem, hash, ccid, new ParametricProblemCache.Instance(replaced, outputs));
+            }
+            String report = plan.getReport().getText();
+            // A timeout or missing output may not happen again, so only repeatable reports are cached
+            if (!main.hadSystemError() && plan.isRepeatable())
+                resultCache.put(resultKey, report, main.getSubmissionId(), main.getSubmissionTime());
+            return report;
+        } finally {
+            if (save) outputStore.release(repo, problem, hash);
         }
+    }
 
-        return plan.getReport().getText();
+    /**
+     * @return true if the problem is neither parametric nor has legacy solution outputs, 
+     * so that its parse and solution outputs can be shared among requests
+     */
+    static boolean usesStoredOutputs(Map<Path, byte[]> problemFiles) {
+        return !problemFiles.containsKey(Path.of("param.js")) && !hasLegacyOutputs(problemFiles);
+    }
+
+    private static boolean hasLegacyOutputs(Map<Path, byte[]> problemFiles) {
+        return problemFiles.keySet().stream().anyMatch(p -> p.startsWith("_outputs"));
     }
 
     public String run(String reportType, Map<Path, String> submissionFiles)
@@ -180,7 +521,7 @@ public class CodeCheck {
             problemFiles.put(key, entry.getValue().getBytes());
         }
         Properties metaData = new Properties();
-        Plan plan = new Main().run(submissionFiles, problemFiles, reportType, metaData, resourceLoader);
+        Plan plan = newMain().run(submissionFiles, problemFiles, reportType, metaData, resourceLoader);
         return plan.getReport().getText();
     }
 
@@ -188,7 +529,7 @@ public class CodeCheck {
             throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
         Map<Path, byte[]> problemFiles = new TreeMap<>(originalProblemFiles);
         String studentId = Util.createPronouncableUID();
-        boolean isParametric = replaceParametersInDirectory(studentId, problemFiles);
+        replaceParametersInDirectory(studentId, problemFiles);
 
         Problem p = new Problem(problemFiles);
         Map<Path, String> submissionFiles = new TreeMap<>();
@@ -198,10 +539,14 @@ public class CodeCheck {
             submissionFiles.put(entry.getKey(), new String(entry.getValue(), StandardCharsets.UTF_8));
 
         Properties metaData = new Properties();
-        Plan plan = new Main().run(submissionFiles, problemFiles, "html", metaData, resourceLoader);
-        if (!isParametric)
-            plan.writeSolutionOutputs(problemFiles);
+        Plan plan = newMain().run(submissionFiles, problemFiles, "html", metaData, resourceLoader);
         saveProblem("ext", problem, originalProblemFiles);
+        if (usesStoredOutputs(originalProblemFiles)) {
+            String hash = probConn.contentHash("ext", problem);
+            probConn.writeMetadata("ext", problem, hash, p);
+            Map<Path, byte[]> outputs = plan.getSolutionOutputs();
+            if (outputs != null) outputStore.write("ext", problem, hash, outputs);
+        }
         return plan.getReport().getText();
     }
 
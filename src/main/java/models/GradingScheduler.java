@@ -0,0 +1,348 @@
+package models;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.horstmann.codecheck.LatencyHistogram;
+
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * Admits grading jobs into a fixed number of slots, which should match the capacity of the
+ * sandboxes. Jobs that find all slots taken wait in a bounded queue. A job that doesn't get a
+ * slot before its deadline fails, and so does one that finds the queue full, so that a burst
+ * gets fast responses that tell the client to retry later, instead of tying up the HTTP
+ * workers until every request times out.
+ *
+ * The slots act as a semaphore in front of a virtual thread per job. Grading mostly waits
+ * for files and child processes, so a job costs a virtual thread, not a platform thread.
+ * Waiting jobs only cost their queue entry.
+ *
+ * Each job has a priority class. When a slot frees up, the classes with waiting jobs share it
+ * in proportion to their weights (by stride scheduling), so that student checks stay fast
+ * during a batch of uploads or a regrade, but the batch still makes progress. If preemption
+ * is enabled, a job that finds the queue full takes the place of the newest waiting job of a
+ * lower class.
+ */
+@Singleton
+public class GradingScheduler {
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * The priority classes, from highest to lowest.
+     */
+    public enum Priority {
+        INTERACTIVE, // student checks
+        UPLOAD, // instructor uploads
+        BULK // batch grading and regrades
+    }
+
+    /**
+     * Signals that a job was not run because the server is overloaded.
+     */
+    public static class OverloadedException extends RuntimeException {
+        private final int status;
+        private final long retryAfterSeconds;
+
+        OverloadedException(String message, int status, long retryAfterSeconds) {
+            super(message);
+            this.status = status;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return 429 if the queue was full, 503 if the job waited past its deadline or was preempted
+         */
+        public int getStatus() { return status; }
+        public long getRetryAfterSeconds() { return retryAfterSeconds; }
+    }
+
+    private class PriorityClass {
+        final Priority priority;
+        final int weight;
+        final Deque<Job<?>> queue = new ArrayDeque<>();
+        double pass; // advances by 1/weight for each job that is started
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong preempted = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+        final LatencyHistogram waitTimes = new LatencyHistogram();
+
+        PriorityClass(Priority priority, int weight) {
+            this.priority = priority;
+            this.weight = weight;
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("weight", weight);
+            result.put("queueDepth", queue.size());
+            result.put("submitted", submitted.get());
+            result.put("rejected", rejected.get());
+            result.put("preempted", preempted.get());
+            result.put("expired", expired.get());
+            result.put("waitTime", waitTimes.stats());
+            return result;
+        }
+    }
+
+    private class Job<T> implements Runnable {
+        final PriorityClass priorityClass;
+        final Callable<T> task;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        final long submitted = System.nanoTime();
+
+        Job(PriorityClass priorityClass, Callable<T> task) {
+            this.priorityClass = priorityClass;
+            this.task = task;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            priorityClass.waitTimes.record((start - submitted) / 1_000_000);
+            try {
+                result.complete(task.call());
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+            } finally {
+                runTimes.record((System.nanoTime() - start) / 1_000_000);
+                completed.incrementAndGet();
+                finished();
+            }
+        }
+
+        /**
+         * Fails the job if it hasn't started.
+         */
+        boolean cancel(String message) {
+            if (!state.compareAndSet(QUEUED, EXPIRED)) return false;
+            priorityClass.waitTimes.record((System.nanoTime() - submitted) / 1_000_000);
+            result.completeExceptionally(new OverloadedException(message, 503, retryAfterSeconds()));
+            return true;
+        }
+    }
+
+    private final int slots;
+    private final int queueCapacity;
+    private final long maxWaitMillis;
+    private final boolean preempt;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService deadlines;
+    private final Map<Priority, PriorityClass> classes = new EnumMap<>(Priority.class);
+    private int queued;
+    private int running;
+    private double virtualTime; // the pass of the class that started a job last
+
+    private final AtomicLong completed = new AtomicLong();
+    private final LatencyHistogram runTimes = new LatencyHistogram();
+
+    /**
+     * @param weights the weights of the priority classes, such as interactive=8,upload=2,bulk=1.
+     * Classes that are not listed have weight 1.
+     * @param preempt true if a job that finds the queue full may displace a job of a lower class
+     */
+    @Inject
+    public GradingScheduler(
+            @ConfigProperty(name = "com.horstmann.codecheck.grading.slots", defaultValue = "10") int slots,
+            @ConfigProperty(name = "com.horstmann.codecheck.grading.queueSize", defaultValue = "100") int queueCapacity,
+            @ConfigProperty(name = "com.horstmann.codecheck.grading.maxWaitMillis", defaultValue = "20000") long maxWaitMillis,
+            @ConfigProperty(name = "com.horstmann.codecheck.grading.weights", defaultValue = "interactive=8,upload=2,bulk=1") String weights,
+            @ConfigProperty(name = "com.horstmann.codecheck.grading.preempt", defaultValue = "true") boolean preempt) {
+        this.slots = slots;
+        this.queueCapacity = queueCapacity;
+        this.maxWaitMillis = maxWaitMillis;
+        this.preempt = preempt;
+        Map<Priority, Integer> parsed = new EnumMap<>(Priority.class);
+        for (String entry : weights.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) continue;
+            Priority priority = Priority.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            parsed.put(priority, Math.max(1, Integer.parseInt(parts[1].trim())));
+        }
+        for (Priority priority : Priority.values())
+            classes.put(priority, new PriorityClass(priority, parsed.getOrDefault(priority, 1)));
+        workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("grading-", 1).factory());
+        deadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "grading-deadlines");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        deadlines.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Runs an interactive task when a slot is free.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submit(Priority.INTERACTIVE, task);
+    }
+
+    /**
+     * Runs the task when a slot is free.
+     * @return the result of the task, or a future that fails with an OverloadedException if the
+     * queue is full or the task didn't get a slot in time
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Callable<T> task) {
+        PriorityClass priorityClass = classes.get(priority);
+        priorityClass.submitted.incrementAndGet();
+        Job<T> job = new Job<>(priorityClass, task);
+        Job<?> victim = null;
+        synchronized (this) {
+            if (running < slots) {
+                start(job);
+                return job.result;
+            }
+            if (queued >= queueCapacity) {
+                victim = preempt ? newestBelow(priority) : null;
+                if (victim == null) {
+                    priorityClass.rejected.incrementAndGet();
+                    return CompletableFuture.failedFuture(new OverloadedException(
+                        "Too many submissions are waiting to be checked. Please try again later.", 429, retryAfterSeconds()));
+                }
+                victim.priorityClass.queue.remove(victim);
+                queued--;
+            }
+            if (priorityClass.queue.isEmpty())
+                priorityClass.pass = Math.max(priorityClass.pass, virtualTime); // No credit for being idle
+            priorityClass.queue.add(job);
+            queued++;
+        }
+        if (victim != null && victim.cancel("Checking was postponed for more urgent work. Please try again later."))
+            victim.priorityClass.preempted.incrementAndGet();
+        deadlines.schedule(() -> expire(job), maxWaitMillis, TimeUnit.MILLISECONDS);
+        return job.result;
+    }
+
+    /**
+     * Runs the task when a slot is free, and waits for it. Meant for virtual threads.
+     * @throws OverloadedException if the queue is full or the task didn't get a slot in time
+     */
+    public <T> T run(Priority priority, Callable<T> task) throws Exception {
+        try {
+            return submit(priority, task).get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw ex;
+        }
+    }
+
+    // Called with the lock held
+    private Job<?> newestBelow(Priority priority) {
+        Priority[] priorities = Priority.values();
+        for (int i = priorities.length - 1; i > priority.ordinal(); i--) {
+            Job<?> job = classes.get(priorities[i]).queue.peekLast();
+            if (job != null) return job;
+        }
+        return null;
+    }
+
+    private void expire(Job<?> job) {
+        synchronized (this) {
+            if (job.priorityClass.queue.remove(job)) queued--;
+        }
+        if (job.cancel("The server is too busy to check this submission. Please try again later."))
+            job.priorityClass.expired.incrementAndGet();
+    }
+
+    // Called with the lock held
+    private void start(Job<?> job) {
+        if (!job.state.compareAndSet(QUEUED, RUNNING)) return;
+        running++;
+        workers.execute(job);
+    }
+
+    /**
+     * Stride scheduling: the class with the smallest pass goes next, and its pass advances
+     * in inverse proportion to its weight.
+     */
+    // Called with the lock held
+    private Job<?> next() {
+        PriorityClass next = null;
+        for (PriorityClass c : classes.values())
+            if (!c.queue.isEmpty() && (next == null || c.pass < next.pass)) next = c;
+        if (next == null) return null;
+        virtualTime = next.pass;
+        next.pass += 1.0 / next.weight;
+        queued--;
+        return next.queue.poll();
+    }
+
+    private void finished() {
+        synchronized (this) {
+            running--;
+            Job<?> job;
+            while (running < slots && (job = next()) != null)
+                start(job); // Skips expired jobs
+        }
+    }
+
+    /**
+     * Estimates how long until the queue has drained, from the typical running time.
+     */
+    private synchronized long retryAfterSeconds() {
+        long perJobMillis = Math.max(1000, runTimes.percentile(50));
+        return Math.max(1, (queued + 1) * perJobMillis / slots / 1000);
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("slots", slots);
+        result.put("running", running);
+        result.put("queueDepth", queued);
+        result.put("queueCapacity", queueCapacity);
+        result.put("maxWaitMillis", maxWaitMillis);
+        result.put("preempt", preempt);
+        long submitted = 0;
+        long rejected = 0;
+        long expired = 0;
+        long preempted = 0;
+        Map<String, Object> classStats = new LinkedHashMap<>();
+        for (PriorityClass c : classes.values()) {
+            submitted += c.submitted.get();
+            rejected += c.rejected.get();
+            expired += c.expired.get();
+            preempted += c.preempted.get();
+            classStats.put(c.priority.name().toLowerCase(Locale.ROOT), c.stats());
+        }
+        result.put("submitted", submitted);
+        result.put("completed", completed.get());
+        result.put("rejected", rejected);
+        result.put("expired", expired);
+        result.put("preempted", preempted);
+        result.put("runTime", runTimes.stats());
+        result.put("classes", classStats);
+        return result;
+    }
+}
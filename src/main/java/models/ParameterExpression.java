@@ -0,0 +1,177 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parameter placeholder that is simple enough to be evaluated without the script engine:
+ * numeric literals, variables that param.js defined, member access on their values, the
+ * operators + - * / and parentheses. The values are those that the script engine would
+ * yield, so that the problem text doesn't depend on which way an expression was evaluated.
+ */
+final class ParameterExpression {
+    /**
+     * Yielded by evaluate if the expression must be left to the script engine.
+     */
+    static final Object UNKNOWN = new Object();
+
+    private interface Node {
+        Object value(Map<String, Object> globals);
+    }
+
+    private final Node root;
+    private final String source;
+    private int pos;
+    private boolean usesVariables;
+
+    private ParameterExpression(String source) {
+        this.source = source;
+        this.root = parseSum();
+    }
+
+    /**
+     * @return the parsed expression, or null if it isn't in the supported subset
+     */
+    static ParameterExpression parse(String source) {
+        try {
+            ParameterExpression result = new ParameterExpression(source);
+            result.skipSpaces();
+            if (result.pos < source.length()) return null;
+            // Arithmetic on literals alone is folded by the script engine, with its own typing rules
+            if (!result.usesVariables) return null;
+            return result;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param globals the global scope of the engine in which param.js was run
+     * @return the value, or UNKNOWN if a variable or member doesn't exist or an operand isn't a number
+     */
+    Object evaluate(Map<String, Object> globals) {
+        return root.value(globals);
+    }
+
+    private Node parseSum() {
+        Node result = parseProduct();
+        while (true) {
+            char op = peek();
+            if (op != '+' && op != '-') return result;
+            pos++;
+            result = arithmetic(op, result, parseProduct());
+        }
+    }
+
+    private Node parseProduct() {
+        Node result = parseUnary();
+        while (true) {
+            char op = peek();
+            if (op != '*' && op != '/') return result;
+            pos++;
+            result = arithmetic(op, result, parseUnary());
+        }
+    }
+
+    private Node parseUnary() {
+        if (peek() == '-') {
+            pos++;
+            Node operand = parseUnary();
+            return globals -> {
+                Object value = operand.value(globals);
+                if (!(value instanceof Number)) return UNKNOWN;
+                return -((Number) value).doubleValue();
+            };
+        }
+        return parsePrimary();
+    }
+
+    private Node parsePrimary() {
+        char c = peek();
+        if (c == '(') {
+            pos++;
+            Node result = parseSum();
+            if (peek() != ')') throw new IllegalArgumentException();
+            pos++;
+            return result;
+        } else if (Character.isDigit(c) || c == '.') {
+            double value = parseNumber();
+            return globals -> value;
+        } else if (Character.isJavaIdentifierStart(c)) {
+            List<String> names = new ArrayList<>();
+            names.add(parseIdentifier());
+            while (peek() == '.') {
+                pos++;
+                skipSpaces();
+                if (pos == source.length() || !Character.isJavaIdentifierStart(source.charAt(pos)))
+                    throw new IllegalArgumentException();
+                names.add(parseIdentifier());
+            }
+            usesVariables = true;
+            return globals -> lookup(globals, names);
+        } else
+            throw new IllegalArgumentException();
+    }
+
+    private static Object lookup(Map<String, Object> globals, List<String> names) {
+        // Only own properties; prototype members such as length are left to the engine
+        Object value = globals;
+        for (String name : names) {
+            if (!(value instanceof Map)) return UNKNOWN;
+            Map<?, ?> scope = (Map<?, ?>) value;
+            if (!scope.containsKey(name)) return UNKNOWN;
+            value = scope.get(name);
+        }
+        return value;
+    }
+
+    private static Node arithmetic(char op, Node left, Node right) {
+        return globals -> {
+            Object a = left.value(globals);
+            if (!(a instanceof Number)) return UNKNOWN; // Also strings, which + concatenates
+            Object b = right.value(globals);
+            if (!(b instanceof Number)) return UNKNOWN;
+            double x = ((Number) a).doubleValue();
+            double y = ((Number) b).doubleValue();
+            switch (op) {
+                case '+': return x + y;
+                case '-': return x - y;
+                case '*': return x * y;
+                default: return x / y;
+            }
+        };
+    }
+
+    private double parseNumber() {
+        int start = pos;
+        while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+        if (pos < source.length() && source.charAt(pos) == '.') {
+            pos++;
+            while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+        }
+        if (pos < source.length() && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+            pos++;
+            if (pos < source.length() && (source.charAt(pos) == '+' || source.charAt(pos) == '-')) pos++;
+            while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+        }
+        if (pos < source.length() && Character.isJavaIdentifierPart(source.charAt(pos)))
+            throw new IllegalArgumentException(); // 0x1F, 1n, 3px
+        return Double.parseDouble(source.substring(start, pos)); // Throws NumberFormatException if malformed
+    }
+
+    private String parseIdentifier() {
+        int start = pos;
+        while (pos < source.length() && Character.isJavaIdentifierPart(source.charAt(pos))) pos++;
+        return source.substring(start, pos);
+    }
+
+    private char peek() {
+        skipSpaces();
+        return pos < source.length() ? source.charAt(pos) : '\0';
+    }
+
+    private void skipSpaces() {
+        while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) pos++;
+    }
+}
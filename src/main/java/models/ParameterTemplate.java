@@ -0,0 +1,91 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A problem file that was split at its parameter placeholders, so that the placeholder
+ * expressions of all files can be evaluated together and then spliced into the text.
+ */
+final class ParameterTemplate {
+    private static final int VALUE_LENGTH_ESTIMATE = 16;
+
+    private final List<String> literals; // one more than expressions
+    private final List<String> expressions;
+    private final int literalLength;
+    private final boolean complete;
+
+    private ParameterTemplate(List<String> literals, List<String> expressions, int literalLength, boolean complete) {
+        this.literals = literals;
+        this.expressions = expressions;
+        this.literalLength = literalLength;
+        this.complete = complete;
+    }
+
+    /**
+     * Scans the contents once for placeholders.
+     * @return the template, or null if the contents have no placeholders. If they have unbalanced
+     * or nested delimiters (which probably means that it's not a text file), the template is
+     * incomplete. It only has the placeholders before the bad one, and it can't be filled.
+     */
+    static ParameterTemplate parse(String contents, String leftDelimiter, String rightDelimiter) {
+        if (contents == null)
+            return null; // Happens if not UTF-8
+        int leftLength = leftDelimiter.length();
+        int rightLength = rightDelimiter.length();
+        List<String> literals = new ArrayList<>();
+        List<String> expressions = new ArrayList<>();
+        int literalLength = 0;
+        int start = 0;
+        int from = contents.indexOf(leftDelimiter);
+        if (from == -1) return null; // No delimiter in file
+        while (from != -1) {
+            int to = contents.indexOf(rightDelimiter, from + leftLength);
+            if (to == -1) // Delimiters don't match--might be binary file
+                return incomplete(expressions);
+            String expression = contents.substring(from + leftLength, to);
+            if (expression.contains(leftDelimiter)) // Nested
+                return incomplete(expressions);
+            literals.add(contents.substring(start, from));
+            literalLength += from - start;
+            expressions.add(expression);
+            start = to + rightLength;
+            from = contents.indexOf(leftDelimiter, start);
+        }
+        literals.add(contents.substring(start));
+        literalLength += contents.length() - start;
+        return new ParameterTemplate(literals, expressions, literalLength, true);
+    }
+
+    private static ParameterTemplate incomplete(List<String> expressions) {
+        if (expressions.isEmpty()) return null;
+        return new ParameterTemplate(null, expressions, 0, false);
+    }
+
+    List<String> getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * @return false if the contents had unbalanced or nested delimiters, so that the file
+     * should be left alone
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Splices values into the placeholders.
+     * @param values the values of the placeholder expressions of all templates
+     * @param offset the index of the first value of this template
+     */
+    String fill(List<?> values, int offset) {
+        StringBuilder result = new StringBuilder(literalLength + VALUE_LENGTH_ESTIMATE * expressions.size());
+        result.append(literals.get(0));
+        for (int i = 0; i < expressions.size(); i++) {
+            result.append(values.get(offset + i));
+            result.append(literals.get(i + 1));
+        }
+        return result.toString();
+    }
+}
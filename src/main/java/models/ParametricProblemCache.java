@@ -0,0 +1,94 @@
+package models;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * An LRU cache of parametric problems that were instantiated for a student, keyed by
+ * problem version and student, and bounded by the total number of bytes held. An instance
+ * holds the files that param.js changed, and the solution outputs for them, so that a
+ * student who submits again skips both the substitution and the solution run.
+ */
+@Singleton
+public class ParametricProblemCache {
+    private static final int ENTRY_OVERHEAD = 64; // rough per-file bookkeeping cost
+
+    public static class Instance {
+        public final Map<Path, byte[]> files; // the files that were changed by parameter substitution
+        public final Map<Path, byte[]> solutionOutputs; // or null if not known
+        private final long weight;
+
+        public Instance(Map<Path, byte[]> files, Map<Path, byte[]> solutionOutputs) {
+            this.files = files;
+            this.solutionOutputs = solutionOutputs;
+            weight = weigh(files) + (solutionOutputs == null ? 0 : weigh(solutionOutputs));
+        }
+
+        private static long weigh(Map<Path, byte[]> files) {
+            long weight = 0;
+            for (Map.Entry<Path, byte[]> entry : files.entrySet())
+                weight += ENTRY_OVERHEAD + 2L * entry.getKey().toString().length() + entry.getValue().length;
+            return weight;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Instance> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Inject
+    public ParametricProblemCache(@ConfigProperty(name = "com.horstmann.codecheck.parametric.maxBytes", defaultValue = "67108864") long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static String key(String repo, String problem, String hash, String studentId) {
+        return repo + "/" + problem + "/" + hash + "/" + studentId;
+    }
+
+    /**
+     * @param hash the content hash of the problem
+     * @return the instance, or null if it isn't cached
+     */
+    public synchronized Instance get(String repo, String problem, String hash, String studentId) {
+        Instance instance = entries.get(key(repo, problem, hash, studentId));
+        if (instance == null) misses.incrementAndGet();
+        else hits.incrementAndGet();
+        return instance;
+    }
+
+    public synchronized void put(String repo, String problem, String hash, String studentId, Instance instance) {
+        if (instance.weight > maxBytes) return;
+        Instance previous = entries.put(key(repo, problem, hash, studentId), instance);
+        if (previous != null) totalBytes -= previous.weight;
+        totalBytes += instance.weight;
+        Iterator<Instance> iter = entries.values().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Instance eldest = iter.next();
+            iter.remove();
+            totalBytes -= eldest.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        result.put("entries", entries.size());
+        result.put("bytes", totalBytes);
+        result.put("maxBytes", maxBytes);
+        return result;
+    }
+}
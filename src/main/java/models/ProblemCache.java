@@ -0,0 +1,328 @@
+package models;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.horstmann.codecheck.LazyFileMap;
+import com.horstmann.codecheck.Problem;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * An LRU cache of problem archives, keyed by repo/problem and bounded by the
+ * total number of bytes held. Callers must copy the maps that are handed out
+ * before mutating them. Along with an archive, the cache can hold the parsed
+ * Problem, and it counts accesses so that the hottest problems can be warmed up.
+ * Concurrent requests for a problem that isn't cached share a single load, and
+ * likewise a single parse.
+ */
+@Singleton
+public class ProblemCache {
+    public interface Loader {
+        LazyFileMap load() throws IOException;
+    }
+
+    public interface AsyncLoader {
+        CompletionStage<LazyFileMap> load();
+    }
+
+    public interface Parser {
+        Problem parse(LazyFileMap files) throws IOException;
+    }
+
+    private static final int ENTRY_OVERHEAD = 64; // rough per-file bookkeeping cost
+    private static final int MAX_COUNTED = 10_000; // problems whose accesses are counted
+
+    private final long maxBytes;
+    private final long revalidateMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private volatile long generation; // incremented on every invalidation, so that stale loads aren't cached
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    // Access ordered, so that problems that are no longer requested make room for others
+    private final LinkedHashMap<String, Long> accesses = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_COUNTED;
+        }
+    };
+    private final Map<String, CompletableFuture<LazyFileMap>> loading = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Problem>> parsing = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        LazyFileMap files;
+        Problem problem; // parsed on first use, only for problems that aren't parametric
+        long weight;
+        long loaded; // when the entry was last loaded or found unchanged
+    }
+
+    @Inject
+    public ProblemCache(@ConfigProperty(name = "com.horstmann.codecheck.cache.maxBytes", defaultValue = "268435456") long maxBytes,
+            @ConfigProperty(name = "com.horstmann.codecheck.cache.revalidateMillis", defaultValue = "0") long revalidateMillis) {
+        this.maxBytes = maxBytes;
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    public LazyFileMap get(String repo, String key, Loader loader) throws IOException {
+        String cacheKey = repo + "/" + key;
+        Flight<LazyFileMap> flight = join(cacheKey, loading, true);
+        if (flight.cached != null) return countAccess(cacheKey, flight.cached);
+        if (!flight.leader) return countAccess(cacheKey, await(flight.pending));
+        misses.incrementAndGet();
+        try {
+            LazyFileMap files = loader.load();
+            put(cacheKey, files, flight.generation);
+            flight.pending.complete(files);
+            return countAccess(cacheKey, files);
+        } catch (IOException | RuntimeException ex) {
+            flight.pending.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            loading.remove(cacheKey, flight.pending);
+        }
+    }
+
+    public CompletionStage<LazyFileMap> getAsync(String repo, String key, AsyncLoader loader) {
+        String cacheKey = repo + "/" + key;
+        Flight<LazyFileMap> flight = join(cacheKey, loading, true);
+        if (flight.cached != null) return CompletableFuture.completedFuture(countAccess(cacheKey, flight.cached));
+        if (!flight.leader) return flight.pending.thenApply(files -> countAccess(cacheKey, files));
+        misses.incrementAndGet();
+        CompletionStage<LazyFileMap> load;
+        try {
+            load = loader.load();
+        } catch (RuntimeException ex) {
+            load = CompletableFuture.failedFuture(ex);
+        }
+        load.whenComplete((files, ex) -> {
+            if (ex == null) put(cacheKey, files, flight.generation);
+            loading.remove(cacheKey, flight.pending);
+            if (ex == null) flight.pending.complete(files);
+            else flight.pending.completeExceptionally(ex);
+        });
+        return flight.pending.thenApply(files -> countAccess(cacheKey, files));
+    }
+
+    /**
+     * The outcome of joining the requests for a problem: either the problem was cached,
+     * or the caller leads the load, or it waits for the pending load of another caller.
+     */
+    private static class Flight<T> {
+        LazyFileMap cached;
+        CompletableFuture<T> pending;
+        boolean leader;
+        long generation;
+    }
+
+    /**
+     * Looks up the cache, and then joins the load in flight or starts one. The loads in flight
+     * are claimed with computeIfAbsent, so that only one caller starts a load, and unrelated
+     * problems don't contend for a lock. (If a load completes between the lookup and the claim,
+     * the problem is loaded once more, which is harmless.)
+     * @param lookup true if the problem cache should be consulted first
+     */
+    private <T> Flight<T> join(String flightKey, Map<String, CompletableFuture<T>> inFlight, boolean lookup) {
+        Flight<T> flight = new Flight<>();
+        if (lookup) {
+            flight.cached = lookup(flightKey);
+            if (flight.cached != null) return flight;
+        }
+        flight.generation = generation; // Read before claiming, so that an invalidation during the load is noticed
+        CompletableFuture<T> created = new CompletableFuture<>();
+        flight.pending = inFlight.computeIfAbsent(flightKey, k -> created);
+        flight.leader = flight.pending == created;
+        if (!flight.leader) coalesced.incrementAndGet();
+        return flight;
+    }
+
+    /**
+     * @return the cached files, or null if they aren't cached or are due for revalidation
+     */
+    private synchronized LazyFileMap lookup(String cacheKey) {
+        Entry entry = entries.get(cacheKey);
+        // With a shared store, another node may have changed the problem, so reload it now and then
+        if (entry == null || revalidateMillis > 0 && System.currentTimeMillis() - entry.loaded >= revalidateMillis)
+            return null;
+        hits.incrementAndGet();
+        return entry.files;
+    }
+
+    private static <T> T await(CompletableFuture<T> pending) throws IOException {
+        try {
+            return pending.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException ioex) throw ioex;
+            if (cause instanceof RuntimeException rex) throw rex;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Yields the parsed problem, parsing it if the cached archive doesn't have it yet.
+     * The problem is shared, so it must not be parametric.
+     * @param files the files of the problem, as obtained from get
+     * @param parser yields the problem from a copy of the files
+     */
+    public Problem getProblem(String repo, String key, LazyFileMap files, Parser parser) throws IOException {
+        String cacheKey = repo + "/" + key;
+        synchronized (this) {
+            Entry entry = entries.get(cacheKey);
+            if (entry != null && entry.problem != null && entry.files.hash().equals(files.hash()))
+                return entry.problem;
+        }
+        String parseKey = cacheKey + "/" + files.hash();
+        Flight<Problem> flight = join(parseKey, parsing, false);
+        if (!flight.leader) return await(flight.pending);
+        try {
+            parses.incrementAndGet();
+            Problem problem = parser.parse(new LazyFileMap(files));
+            long weight = weigh(problem);
+            synchronized (this) {
+                Entry entry = entries.get(cacheKey);
+                if (flight.generation == generation && entry != null && entry.problem == null 
+                        && entry.files.hash().equals(files.hash())) {
+                    entry.problem = problem;
+                    entry.weight += weight;
+                    totalBytes += weight;
+                    evict();
+                }
+            }
+            flight.pending.complete(problem);
+            return problem;
+        } catch (IOException | RuntimeException ex) {
+            flight.pending.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            parsing.remove(parseKey, flight.pending);
+        }
+    }
+
+    /**
+     * Counts an access to a problem that was found, so that requests for problems that don't
+     * exist can't fill up the counts.
+     */
+    private LazyFileMap countAccess(String cacheKey, LazyFileMap files) {
+        synchronized (accesses) {
+            accesses.merge(cacheKey, 1L, Long::sum);
+        }
+        return files;
+    }
+
+    /**
+     * @param n the maximum number of keys to yield
+     * @return the repo/problem keys that were most often requested since startup, most frequent first.
+     * Only the most recently requested problems are counted.
+     */
+    public List<String> hottest(int n) {
+        Comparator<Map.Entry<String, Long>> byCount = Map.Entry.comparingByValue();
+        PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(byCount); // least frequent at the head
+        synchronized (accesses) {
+            for (Map.Entry<String, Long> entry : accesses.entrySet()) {
+                if (top.size() < n) top.add(Map.entry(entry.getKey(), entry.getValue()));
+                else if (n > 0 && entry.getValue() > top.peek().getValue()) {
+                    top.poll();
+                    top.add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        List<Map.Entry<String, Long>> result = new ArrayList<>(top);
+        result.sort(byCount.reversed());
+        return result.stream().map(Map.Entry::getKey).toList();
+    }
+
+    public synchronized void invalidate(String repo, String key) {
+        generation++;
+        loading.remove(repo + "/" + key); // Later requests must not join a load of the old version
+        Entry entry = entries.remove(repo + "/" + key);
+        if (entry != null) {
+            totalBytes -= entry.weight;
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        loading.clear();
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    private synchronized void put(String cacheKey, LazyFileMap files, long loadGeneration) {
+        if (loadGeneration != generation) return; // Problem was rewritten while we were loading it
+        Entry previous = entries.get(cacheKey);
+        if (previous != null && previous.files.hash().equals(files.hash())) {
+            previous.loaded = System.currentTimeMillis(); // Unchanged, keep the parsed problem
+            return;
+        }
+        long weight = weigh(files);
+        if (weight > maxBytes) return;
+        Entry entry = new Entry();
+        entry.files = files;
+        entry.weight = weight;
+        entry.loaded = System.currentTimeMillis();
+        entries.put(cacheKey, entry);
+        if (previous != null) totalBytes -= previous.weight;
+        totalBytes += weight;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Entry eldest = iter.next();
+            iter.remove();
+            totalBytes -= eldest.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static long weigh(LazyFileMap files) {
+        long weight = files.weight(); // Don't inflate everything just to weigh it
+        for (Path p : files.keySet())
+            weight += ENTRY_OVERHEAD + 2L * p.toString().length();
+        return weight;
+    }
+
+    private static long weigh(Problem problem) {
+        long weight = 0; // Problem has read all files, so count them even though small ones are shared with the archive
+        for (byte[] contents : problem.getUseFiles().values()) weight += contents.length;
+        for (byte[] contents : problem.getSolutionFiles().values()) weight += contents.length;
+        for (byte[] contents : problem.getInputFiles().values()) weight += contents.length;
+        return weight;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        result.put("invalidations", invalidations.get());
+        result.put("coalesced", coalesced.get());
+        result.put("parses", parses.get());
+        result.put("entries", entries.size());
+        result.put("bytes", totalBytes);
+        result.put("maxBytes", maxBytes);
+        return result;
+    }
+}
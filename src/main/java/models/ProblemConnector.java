@@ -1,15 +1,51 @@
 package models;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.eclipse.microprofile.config.Config;
 import org.eclipse.microprofile.config.ConfigProvider;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.horstmann.codecheck.CodeCheckException;
+import com.horstmann.codecheck.LazyFileMap;
+import com.horstmann.codecheck.Problem;
 import com.horstmann.codecheck.Util;
 
 import jakarta.inject.Inject;
@@ -17,28 +53,125 @@ import jakarta.inject.Singleton;
 
 @Singleton
 public class ProblemConnector {
+    private static final Logger logger = Logger.getLogger(ProblemConnector.class);
     private final ProblemConnection delegate;
+    private final ProblemCache cache;
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
     @Inject
-    public ProblemConnector(@ConfigProperty(name = "com.horstmann.codecheck.s3.region") String s3Region) {
+    public ProblemConnector(@ConfigProperty(name = "com.horstmann.codecheck.s3.region") String s3Region, ProblemCache cache) {
+        this.cache = cache;
         Config config = ConfigProvider.getConfig();
         // Validate configuration and initialize delegate
         validateConfig(config);
-        delegate = new ProblemLocalConnection(config);
+        String store = config.getOptionalValue("com.horstmann.codecheck.repo.store", String.class).orElse("zip");
+        if (store.equals("blob"))
+            delegate = new ProblemBlobConnection(config);
+        else if (store.equals("s3"))
+            delegate = new ProblemS3Connection(config);
+        else
+            delegate = new ProblemLocalConnection(config);
     }
 
     public void write(byte[] contents, String repo, String key) throws IOException {
-        delegate.write(contents, repo, key);
+        try {
+            delegate.write(contents, repo, key);
+        } finally {
+            cache.invalidate(repo, key);
+        }
     }
 
     public void delete(String repo, String key) throws IOException {
-        delegate.delete(repo, key);
+        try {
+            delegate.delete(repo, key);
+        } finally {
+            cache.invalidate(repo, key);
+        }
     }
 
     public byte[] read(String repo, String key) throws IOException {
         return delegate.read(repo, key);
     }
 
+    public CompletionStage<Void> writeAsync(byte[] contents, String repo, String key) {
+        return delegate.writeAsync(contents, repo, key).whenComplete((result, ex) -> cache.invalidate(repo, key));
+    }
+
+    public CompletionStage<Void> deleteAsync(String repo, String key) {
+        return delegate.deleteAsync(repo, key).whenComplete((result, ex) -> cache.invalidate(repo, key));
+    }
+
+    public CompletionStage<byte[]> readAsync(String repo, String key) {
+        return delegate.readAsync(repo, key);
+    }
+
+    /**
+     * The asynchronous version of readFiles. Cache hits complete immediately.
+     */
+    public CompletionStage<LazyFileMap> readFilesAsync(String repo, String key) {
+        return cache.getAsync(repo, key, () -> delegate.readFilesAsync(repo, key)).thenApply(LazyFileMap::new);
+    }
+
+    /**
+     * Reads and unzips a problem, consulting the problem cache first.
+     * @return a mutable copy of the problem files that the caller owns
+     */
+    public LazyFileMap readFiles(String repo, String key) throws IOException {
+        return new LazyFileMap(cache.get(repo, key, () -> delegate.readFiles(repo, key)));
+    }
+
+    /**
+     * @return a hash of the current contents of a problem, for keying data derived from it
+     */
+    public String contentHash(String repo, String key) throws IOException {
+        return cache.get(repo, key, () -> delegate.readFiles(repo, key)).hash();
+    }
+
+    /**
+     * Yields a problem that isn't parametric, from the cache, from its saved metadata, or by parsing it.
+     * @param files the files that were obtained with readFiles
+     */
+    public Problem readProblem(String repo, String key, LazyFileMap files) throws IOException {
+        return cache.getProblem(repo, key, files, copy -> {
+            String name = metadataName(files.hash());
+            byte[] json = delegate.readSidecar(repo, key, name);
+            if (json != null) {
+                try {
+                    return Problem.fromMetadata(objectMapper.readValue(json, Problem.Metadata.class), copy);
+                } catch (IOException | RuntimeException ex) {
+                    logger.warn("Cannot use metadata of " + repo + "/" + key + ", parsing it instead", ex);
+                }
+            }
+            Problem problem = new Problem(copy);
+            try { // Problems that were uploaded before there was metadata get it now
+                delegate.writeSidecar(objectMapper.writeValueAsBytes(problem.getMetadata()), repo, key, name);
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Cannot save metadata of " + repo + "/" + key, ex);
+            }
+            return problem;
+        });
+    }
+
+    /**
+     * Saves what was derived from parsing a problem that isn't parametric, so that it needn't be parsed again.
+     * @param hash the content hash of the problem
+     */
+    public void writeMetadata(String repo, String key, String hash, Problem problem) throws IOException {
+        delegate.writeSidecar(objectMapper.writeValueAsBytes(problem.getMetadata()), repo, key, metadataName(hash));
+    }
+
+    private static String metadataName(String hash) {
+        return "problem-" + hash + ".json";
+    }
+
+    public byte[] readSidecar(String repo, String key, String name) throws IOException {
+        return delegate.readSidecar(repo, key, name);
+    }
+
+    public void writeSidecar(byte[] contents, String repo, String key, String name) throws IOException {
+        delegate.writeSidecar(contents, repo, key, name);
+    }
+
     private void validateConfig(Config config) {
         String localPath = config.getValue("com.horstmann.codecheck.s3.local", String.class);
         if (localPath == null || localPath.trim().isEmpty()) {
@@ -51,6 +184,50 @@ interface ProblemConnection {
     void write(byte[] contents, String repo, String key) throws IOException;
     void delete(String repo, String key) throws IOException;
     byte[] read(String repo, String key) throws IOException;
+    default LazyFileMap readFiles(String repo, String key) throws IOException {
+        return LazyFileMap.unzip(read(repo, key));
+    }
+    /**
+     * Sidecars hold data derived from a problem, such as solution outputs. They are
+     * stored next to the problem and deleted with it.
+     * @return the sidecar contents, or null if there is no such sidecar
+     */
+    byte[] readSidecar(String repo, String key, String name) throws IOException;
+    void writeSidecar(byte[] contents, String repo, String key, String name) throws IOException;
+
+    // The default implementations of the asynchronous variants run the blocking ones on a virtual thread
+
+    default CompletionStage<Void> writeAsync(byte[] contents, String repo, String key) {
+        return offloaded(() -> { write(contents, repo, key); return null; });
+    }
+    default CompletionStage<Void> deleteAsync(String repo, String key) {
+        return offloaded(() -> { delete(repo, key); return null; });
+    }
+    default CompletionStage<byte[]> readAsync(String repo, String key) {
+        return offloaded(() -> read(repo, key));
+    }
+    default CompletionStage<LazyFileMap> readFilesAsync(String repo, String key) {
+        return offloaded(() -> readFiles(repo, key));
+    }
+
+    interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    /**
+     * Runs blocking I/O on a virtual thread, so that it never happens on the event loop.
+     */
+    static <T> CompletableFuture<T> offloaded(IOSupplier<T> supplier) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Thread.ofVirtual().name("problem-io").start(() -> {
+            try {
+                result.complete(supplier.get());
+            } catch (IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
 }
 
 @Singleton
@@ -77,12 +254,18 @@ class ProblemLocalConnection implements ProblemConnection {
         Path repoPath = root.resolve(repo);
         Files.createDirectories(repoPath);
         Path newFilePath = repoPath.resolve(key + ".zip");
+        Path tempFilePath = null;
         try {
-            Files.write(newFilePath, contents);
+            // Atomic replacement keeps zip files that are being read intact
+            tempFilePath = Files.createTempFile(repoPath, key, ".tmp");
+            Files.write(tempFilePath, contents);
+            Files.move(tempFilePath, newFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ex) {
             String bytes = Arrays.toString(contents);
             logger.error("Cannot write to file " + newFilePath.toAbsolutePath() + " in repository " + repo, ex);
             throw ex;
+        } finally {
+            if (tempFilePath != null) Files.deleteIfExists(tempFilePath);
         }
     }
 
@@ -109,4 +292,652 @@ class ProblemLocalConnection implements ProblemConnection {
             throw ex;
         }
     }
+
+    @Override
+    public LazyFileMap readFiles(String repo, String key) throws IOException {
+        Path repoPath = root.resolve(repo);
+        Path filePath = repoPath.resolve(key + ".zip");
+        try {
+            return LazyFileMap.open(filePath);
+        } catch (IOException ex) {
+            logger.error("Cannot read file " + filePath.toAbsolutePath() + " from repository " + repo, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> writeAsync(byte[] contents, String repo, String key) {
+        Path repoPath = root.resolve(repo);
+        Path newFilePath = repoPath.resolve(key + ".zip");
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Path tempFilePath;
+        try {
+            Files.createDirectories(repoPath);
+            tempFilePath = Files.createTempFile(repoPath, key, ".tmp");
+        } catch (IOException ex) {
+            logger.error("Cannot write to file " + newFilePath.toAbsolutePath() + " in repository " + repo, ex);
+            result.completeExceptionally(ex);
+            return result;
+        }
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(tempFilePath, StandardOpenOption.WRITE);
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            channel.write(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+                public void completed(Integer bytesWritten, ByteBuffer buf) {
+                    if (buf.hasRemaining()) {
+                        channel.write(buf, buf.position(), buf, this);
+                        return;
+                    }
+                    try {
+                        channel.close();
+                        Files.move(tempFilePath, newFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        result.complete(null);
+                    } catch (IOException ex) {
+                        failed(ex, buf);
+                    }
+                }
+                public void failed(Throwable ex, ByteBuffer buf) {
+                    closeQuietly(channel);
+                    deleteQuietly(tempFilePath);
+                    logger.error("Cannot write to file " + newFilePath.toAbsolutePath() + " in repository " + repo, ex);
+                    result.completeExceptionally(ex);
+                }
+            });
+        } catch (IOException ex) {
+            deleteQuietly(tempFilePath);
+            logger.error("Cannot write to file " + newFilePath.toAbsolutePath() + " in repository " + repo, ex);
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletionStage<byte[]> readAsync(String repo, String key) {
+        Path filePath = root.resolve(repo).resolve(key + ".zip");
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(filePath, StandardOpenOption.READ);
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+                public void completed(Integer bytesRead, ByteBuffer buf) {
+                    if (bytesRead >= 0 && buf.hasRemaining()) {
+                        channel.read(buf, buf.position(), buf, this);
+                        return;
+                    }
+                    closeQuietly(channel);
+                    result.complete(buf.hasRemaining() ? Arrays.copyOf(buf.array(), buf.position()) : buf.array());
+                }
+                public void failed(Throwable ex, ByteBuffer buf) {
+                    closeQuietly(channel);
+                    logger.error("Cannot read file " + filePath.toAbsolutePath() + " from repository " + repo, ex);
+                    result.completeExceptionally(ex);
+                }
+            });
+        } catch (IOException ex) {
+            logger.error("Cannot read file " + filePath.toAbsolutePath() + " from repository " + repo, ex);
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletionStage<LazyFileMap> readFilesAsync(String repo, String key) {
+        // Opening the zip file reads its directory and small entries, which must not happen on the event loop
+        return ProblemConnection.offloaded(() -> readFiles(repo, key));
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.warn("Cannot close channel", ex);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            logger.warn("Cannot delete " + path.toAbsolutePath(), ex);
+        }
+    }
+
+    // Sidecars go into the directory that delete removes
+    @Override
+    public byte[] readSidecar(String repo, String key, String name) throws IOException {
+        Path filePath = root.resolve(repo).resolve(key).resolve(name);
+        if (!Files.exists(filePath)) return null;
+        return Files.readAllBytes(filePath);
+    }
+
+    @Override
+    public void writeSidecar(byte[] contents, String repo, String key, String name) throws IOException {
+        Path directoryPath = root.resolve(repo).resolve(key);
+        Files.createDirectories(directoryPath);
+        Path tempFilePath = Files.createTempFile(directoryPath, name, ".tmp");
+        Files.write(tempFilePath, contents);
+        Files.move(tempFilePath, directoryPath.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+/**
+ * Stores each problem file once, under its SHA-256 hash, and a manifest per problem
+ * that maps paths to hashes. Identical files in different problems (or in different
+ * versions of the same problem) share a blob, and rewriting a problem only writes
+ * the blobs that are new. Unreferenced blobs are not removed.
+ *
+ * Layout: root/blobs/ab/abcd...ef and root/manifests/repo/key.manifest, where each
+ * manifest line is "hash size path".
+ */
+class ProblemBlobConnection implements ProblemConnection {
+    private static final Logger logger = Logger.getLogger(ProblemBlobConnection.class);
+    private final Path blobRoot;
+    private final Path manifestRoot;
+
+    public ProblemBlobConnection(Config config) {
+        Path root = Path.of(config.getValue("com.horstmann.codecheck.s3.local", String.class));
+        blobRoot = root.resolve("blobs");
+        manifestRoot = root.resolve("manifests");
+        try {
+            Files.createDirectories(blobRoot);
+            Files.createDirectories(manifestRoot);
+        } catch (IOException ex) {
+            logger.error("Cannot create directory " + root.toAbsolutePath(), ex);
+            throw new RuntimeException("Cannot create root directory", ex);
+        }
+    }
+
+    private Path manifestPath(String repo, String key) {
+        return manifestRoot.resolve(repo).resolve(key + ".manifest");
+    }
+
+    private Path sidecarPath(String repo, String key, String name) {
+        return manifestRoot.resolve(repo).resolve(key).resolve(name);
+    }
+
+    private Path blobPath(String hash) {
+        return blobRoot.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static void writeAtomically(Path path, byte[] contents) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tempFilePath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        Files.write(tempFilePath, contents);
+        Files.move(tempFilePath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void write(byte[] contents, String repo, String key) throws IOException {
+        Path manifestPath = manifestPath(repo, key);
+        try {
+            StringBuilder manifest = new StringBuilder();
+            for (Map.Entry<Path, byte[]> entry : Util.unzip(contents).entrySet()) {
+                byte[] fileContents = entry.getValue();
+                String hash = Util.hash(fileContents);
+                Path blobPath = blobPath(hash);
+                if (!Files.exists(blobPath)) writeAtomically(blobPath, fileContents);
+                manifest.append(hash).append(" ").append(fileContents.length).append(" ").append(entry.getKey()).append("\n");
+            }
+            // Readers see either the old or the new manifest, never a mixture
+            writeAtomically(manifestPath, manifest.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            logger.error("Cannot write manifest " + manifestPath.toAbsolutePath() + " in repository " + repo, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void delete(String repo, String key) throws IOException {
+        Path manifestPath = manifestPath(repo, key);
+        try {
+            Files.deleteIfExists(manifestPath);
+            Util.deleteDirectory(manifestPath.resolveSibling(key));
+        } catch (IOException ex) {
+            logger.error("Cannot delete manifest " + manifestPath.toAbsolutePath() + " in repository " + repo, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public byte[] read(String repo, String key) throws IOException {
+        return Util.zip(readFiles(repo, key));
+    }
+
+    @Override
+    public LazyFileMap readFiles(String repo, String key) throws IOException {
+        Path manifestPath = manifestPath(repo, key);
+        byte[] manifest;
+        try {
+            manifest = Files.readAllBytes(manifestPath);
+        } catch (IOException ex) {
+            logger.error("Cannot read manifest " + manifestPath.toAbsolutePath() + " from repository " + repo, ex);
+            throw ex;
+        }
+        Map<Path, String> hashes = new TreeMap<>();
+        long weight = 0;
+        for (String line : Util.lines(manifest)) {
+            String[] fields = line.split(" ", 3);
+            if (fields.length < 3) continue;
+            hashes.put(Path.of(fields[2]), fields[0]);
+            weight += Long.parseLong(fields[1]);
+        }
+        long sourceWeight = weight;
+        String manifestHash = Util.hash(manifest);
+        Map<Path, byte[]> blobs = new ConcurrentHashMap<>();
+        LazyFileMap.Source source = new LazyFileMap.Source() {
+            public byte[] read(Path path) throws IOException {
+                byte[] contents = blobs.get(path);
+                if (contents != null) return contents;
+                String hash = hashes.get(path);
+                if (hash == null) return null;
+                contents = Files.readAllBytes(blobPath(hash));
+                blobs.put(path, contents);
+                return contents;
+            }
+            public long weight() { return sourceWeight; }
+            public String hash() { return manifestHash; }
+        };
+        return new LazyFileMap(source, hashes.keySet());
+    }
+
+    @Override
+    public byte[] readSidecar(String repo, String key, String name) throws IOException {
+        Path filePath = sidecarPath(repo, key, name);
+        if (!Files.exists(filePath)) return null;
+        return Files.readAllBytes(filePath);
+    }
+
+    @Override
+    public void writeSidecar(byte[] contents, String repo, String key, String name) throws IOException {
+        writeAtomically(sidecarPath(repo, key, name), contents);
+    }
+}
+
+/**
+ * Stores problems in an S3-compatible object store, so that several nodes can share them.
+ * Problems are objects repo/key.zip in the bucket com.horstmann.codecheck.s3.bucket, and
+ * sidecars are objects repo/key/name. Requests are signed with AWS Signature Version 4.
+ * To test against a local stand-in, set com.horstmann.codecheck.s3.endpoint and
+ * com.horstmann.codecheck.s3.pathStyle=true.
+ *
+ * Problem zip files are streamed into a local disk cache (com.horstmann.codecheck.s3.cacheDir)
+ * and opened lazily from there. Their ETags are remembered, so that a problem that didn't
+ * change is only revalidated, not downloaded again.
+ */
+@Singleton
+class ProblemS3Connection implements ProblemConnection {
+    private static final Logger logger = Logger.getLogger(ProblemS3Connection.class);
+    private static final String EMPTY_HASH = Util.hash(new byte[0]);
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final Pattern LIST_KEY = Pattern.compile("<Key>(.*?)</Key>");
+    private static final Pattern LIST_TOKEN = Pattern.compile("<NextContinuationToken>(.*?)</NextContinuationToken>");
+
+    private final HttpClient client; // pools and reuses connections
+    private final String region;
+    private final String bucket;
+    private final URI endpoint;
+    private final boolean pathStyle;
+    private final String accessKey;
+    private final String secretKey;
+    private final String sessionToken;
+    private final Path cacheRoot;
+    private final Duration timeout;
+
+    public ProblemS3Connection(Config config) {
+        region = config.getValue("com.horstmann.codecheck.s3.region", String.class);
+        bucket = config.getValue("com.horstmann.codecheck.s3.bucket", String.class);
+        endpoint = URI.create(config.getOptionalValue("com.horstmann.codecheck.s3.endpoint", String.class)
+            .orElse("https://s3." + region + ".amazonaws.com"));
+        pathStyle = config.getOptionalValue("com.horstmann.codecheck.s3.pathStyle", Boolean.class).orElse(false);
+        accessKey = config.getOptionalValue("com.horstmann.codecheck.s3.accessKey", String.class)
+            .orElse(System.getenv("AWS_ACCESS_KEY_ID"));
+        secretKey = config.getOptionalValue("com.horstmann.codecheck.s3.secretKey", String.class)
+            .orElse(System.getenv("AWS_SECRET_ACCESS_KEY"));
+        sessionToken = config.getOptionalValue("com.horstmann.codecheck.s3.sessionToken", String.class)
+            .orElse(System.getenv("AWS_SESSION_TOKEN"));
+        if (accessKey == null || secretKey == null) {
+            throw new IllegalArgumentException("Configuration 'com.horstmann.codecheck.s3.accessKey' and 'com.horstmann.codecheck.s3.secretKey' must be set.");
+        }
+        timeout = Duration.ofMillis(config.getOptionalValue("com.horstmann.codecheck.s3.timeoutMillis", Long.class).orElse(30000L));
+        cacheRoot = Path.of(config.getOptionalValue("com.horstmann.codecheck.s3.cacheDir", String.class)
+            .orElse(System.getProperty("java.io.tmpdir") + "/codecheck-s3"));
+        try {
+            Files.createDirectories(cacheRoot);
+        } catch (IOException ex) {
+            logger.error("Cannot create directory " + cacheRoot.toAbsolutePath(), ex);
+            throw new RuntimeException("Cannot create cache directory", ex);
+        }
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    private static String problemKey(String repo, String key) {
+        return repo + "/" + key + ".zip";
+    }
+
+    private static String sidecarKey(String repo, String key, String name) {
+        return repo + "/" + key + "/" + name;
+    }
+
+    // Signing
+
+    private static String encode(String s, boolean keepSlash) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' 
+                    || c == '-' || c == '_' || c == '.' || c == '~' || keepSlash && c == '/')
+                result.append(c);
+            else
+                result.append('%').append(String.format("%02X", b & 0xFF));
+        }
+        return result.toString();
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new CodeCheckException("HmacSHA256 not available", ex);
+        }
+    }
+
+    /**
+     * @param objectKey the object key, or "" for the bucket
+     * @param params the unencoded query parameters
+     * @param body the request body, or null
+     * @param headers additional headers that are not signed
+     */
+    private HttpRequest request(String method, String objectKey, Map<String, String> params, byte[] body, 
+            Map<String, String> headers) {
+        String authority = pathStyle ? endpoint.getRawAuthority() : bucket + "." + endpoint.getRawAuthority();
+        String path = pathStyle ? "/" + encode(bucket, false) : "";
+        path += objectKey.isEmpty() && pathStyle ? "" : "/" + encode(objectKey, true);
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> param : new TreeMap<>(params).entrySet()) {
+            if (query.length() > 0) query.append("&");
+            query.append(encode(param.getKey(), false)).append("=").append(encode(param.getValue(), false));
+        }
+        URI uri = URI.create(endpoint.getScheme() + "://" + authority + path + (query.length() > 0 ? "?" + query : ""));
+
+        String payloadHash = body == null ? EMPTY_HASH : Util.hash(body);
+        String amzDate = AMZ_DATE.format(Instant.now());
+        Map<String, String> signed = new TreeMap<>();
+        signed.put("host", authority);
+        signed.put("x-amz-content-sha256", payloadHash);
+        signed.put("x-amz-date", amzDate);
+        if (sessionToken != null) signed.put("x-amz-security-token", sessionToken);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+            .timeout(timeout)
+            .header("Authorization", authorization(method, path, query.toString(), signed, payloadHash, amzDate));
+        for (Map.Entry<String, String> header : signed.entrySet())
+            if (!header.getKey().equals("host")) builder.header(header.getKey(), header.getValue());
+        for (Map.Entry<String, String> header : headers.entrySet())
+            builder.header(header.getKey(), header.getValue());
+        builder.method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+        return builder.build();
+    }
+
+    /**
+     * @param path the encoded path
+     * @param query the encoded query, with parameters sorted by name
+     * @param signed the headers to sign, with lowercase names, sorted
+     */
+    private String authorization(String method, String path, String query, Map<String, String> signed, 
+            String payloadHash, String amzDate) {
+        StringBuilder canonicalHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : signed.entrySet())
+            canonicalHeaders.append(header.getKey()).append(":").append(header.getValue().strip()).append("\n");
+        String signedHeaders = String.join(";", signed.keySet());
+        String canonicalRequest = method + "\n" + path + "\n" + query + "\n" + canonicalHeaders + "\n" 
+            + signedHeaders + "\n" + payloadHash;
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" 
+            + Util.hash(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+        return "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope 
+            + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature;
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return client.send(request, handler);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.uri());
+        }
+    }
+
+    private static IOException failure(HttpResponse<?> response) {
+        String message = response.request().method() + " " + response.request().uri() + ": HTTP " + response.statusCode();
+        if (response.body() instanceof byte[] body && body.length > 0)
+            message += " " + new String(body, 0, Math.min(body.length, 500), StandardCharsets.UTF_8);
+        return new IOException(message);
+    }
+
+    private static boolean ok(HttpResponse<?> response) {
+        return response.statusCode() / 100 == 2;
+    }
+
+    // Local copies of problem zip files
+
+    private record Download(String objectKey, Path local, Path etag, Path temp, HttpRequest request) {}
+
+    private Download download(String objectKey) throws IOException {
+        Path local = cacheRoot.resolve(objectKey);
+        Path etag = local.resolveSibling(local.getFileName() + ".etag");
+        Files.createDirectories(local.getParent());
+        Map<String, String> headers = new TreeMap<>();
+        if (Files.exists(local) && Files.exists(etag))
+            headers.put("If-None-Match", Files.readString(etag, StandardCharsets.UTF_8));
+        Path temp = Files.createTempFile(local.getParent(), local.getFileName().toString(), ".tmp");
+        return new Download(objectKey, local, etag, temp, request("GET", objectKey, Map.of(), null, headers));
+    }
+
+    private static HttpResponse.BodyHandler<Path> toFile(Download download) {
+        // Only stream the body into the file if there is a new version
+        return info -> info.statusCode() == 200 ? HttpResponse.BodySubscribers.ofFile(download.temp()) 
+            : HttpResponse.BodySubscribers.replacing(download.temp());
+    }
+
+    private static Path downloaded(Download download, HttpResponse<Path> response) throws IOException {
+        try {
+            int status = response.statusCode();
+            if (status == 304) return download.local();
+            if (status == 404) throw new NoSuchFileException(download.objectKey());
+            if (status != 200) throw failure(response);
+            // Without an ETag, the next request downloads again, so drop the old one first 
+            Files.deleteIfExists(download.etag());
+            Files.move(download.temp(), download.local(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Optional<String> etag = response.headers().firstValue("ETag");
+            if (etag.isPresent()) writeAtomically(download.etag(), etag.get().getBytes(StandardCharsets.UTF_8));
+            return download.local();
+        } finally {
+            Files.deleteIfExists(download.temp());
+        }
+    }
+
+    private Path fetch(String repo, String key) throws IOException {
+        String objectKey = problemKey(repo, key);
+        try {
+            Download download = download(objectKey);
+            HttpResponse<Path> response;
+            try {
+                response = send(download.request(), toFile(download));
+            } catch (IOException | RuntimeException ex) {
+                Files.deleteIfExists(download.temp());
+                throw ex;
+            }
+            return downloaded(download, response);
+        } catch (IOException ex) {
+            logger.error("Cannot read object " + objectKey + " from bucket " + bucket, ex);
+            throw ex;
+        }
+    }
+
+    private CompletableFuture<Path> fetchAsync(String repo, String key) {
+        String objectKey = problemKey(repo, key);
+        Download download;
+        try {
+            download = download(objectKey);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return client.sendAsync(download.request(), toFile(download)).whenComplete((response, ex) -> {
+            if (ex == null) return; // downloaded deletes the temp file
+            try {
+                Files.deleteIfExists(download.temp());
+            } catch (IOException ioex) {
+                logger.warn("Cannot delete " + download.temp().toAbsolutePath(), ioex);
+            }
+        }).thenApply(response -> {
+            try {
+                return downloaded(download, response);
+            } catch (IOException ex) {
+                logger.error("Cannot read object " + objectKey + " from bucket " + bucket, ex);
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    private static void writeAtomically(Path path, byte[] contents) throws IOException {
+        Path tempFilePath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        Files.write(tempFilePath, contents);
+        Files.move(tempFilePath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void cacheLocally(String repo, String key, byte[] contents, HttpResponse<?> response) {
+        Path local = cacheRoot.resolve(problemKey(repo, key));
+        Path etag = local.resolveSibling(local.getFileName() + ".etag");
+        try {
+            Files.createDirectories(local.getParent());
+            Files.deleteIfExists(etag);
+            writeAtomically(local, contents);
+            Optional<String> tag = response.headers().firstValue("ETag");
+            if (tag.isPresent()) writeAtomically(etag, tag.get().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            logger.warn("Cannot cache " + local.toAbsolutePath(), ex); // Will be downloaded next time
+        }
+    }
+
+    // Operations
+
+    @Override
+    public void write(byte[] contents, String repo, String key) throws IOException {
+        String objectKey = problemKey(repo, key);
+        try {
+            HttpResponse<byte[]> response = send(request("PUT", objectKey, Map.of(), contents, Map.of()), 
+                HttpResponse.BodyHandlers.ofByteArray());
+            if (!ok(response)) throw failure(response);
+            cacheLocally(repo, key, contents, response);
+        } catch (IOException ex) {
+            logger.error("Cannot write object " + objectKey + " to bucket " + bucket, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> writeAsync(byte[] contents, String repo, String key) {
+        String objectKey = problemKey(repo, key);
+        return client.sendAsync(request("PUT", objectKey, Map.of(), contents, Map.of()), HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(response -> {
+                if (!ok(response)) {
+                    IOException ex = failure(response);
+                    logger.error("Cannot write object " + objectKey + " to bucket " + bucket, ex);
+                    throw new CompletionException(ex);
+                }
+                cacheLocally(repo, key, contents, response);
+                return null;
+            });
+    }
+
+    @Override
+    public void delete(String repo, String key) throws IOException {
+        String objectKey = problemKey(repo, key);
+        try {
+            List<String> objectKeys = list(repo + "/" + key + "/");
+            objectKeys.add(objectKey);
+            for (String k : objectKeys) {
+                HttpResponse<byte[]> response = send(request("DELETE", k, Map.of(), null, Map.of()), 
+                    HttpResponse.BodyHandlers.ofByteArray());
+                if (!ok(response) && response.statusCode() != 404) throw failure(response);
+            }
+            Path local = cacheRoot.resolve(objectKey);
+            Files.deleteIfExists(local.resolveSibling(local.getFileName() + ".etag"));
+            Files.deleteIfExists(local);
+        } catch (IOException ex) {
+            logger.error("Cannot delete object " + objectKey + " from bucket " + bucket, ex);
+            throw ex;
+        }
+    }
+
+    private List<String> list(String prefix) throws IOException {
+        List<String> result = new ArrayList<>();
+        String token = null;
+        do {
+            Map<String, String> params = new TreeMap<>();
+            params.put("list-type", "2");
+            params.put("prefix", prefix);
+            if (token != null) params.put("continuation-token", token);
+            HttpResponse<byte[]> response = send(request("GET", "", params, null, Map.of()), HttpResponse.BodyHandlers.ofByteArray());
+            if (!ok(response)) throw failure(response);
+            String xml = new String(response.body(), StandardCharsets.UTF_8);
+            Matcher matcher = LIST_KEY.matcher(xml);
+            while (matcher.find()) result.add(unescapeXML(matcher.group(1)));
+            matcher = LIST_TOKEN.matcher(xml);
+            token = matcher.find() ? unescapeXML(matcher.group(1)) : null;
+        } while (token != null);
+        return result;
+    }
+
+    private static String unescapeXML(String s) {
+        return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    @Override
+    public byte[] read(String repo, String key) throws IOException {
+        return Files.readAllBytes(fetch(repo, key));
+    }
+
+    @Override
+    public LazyFileMap readFiles(String repo, String key) throws IOException {
+        return LazyFileMap.open(fetch(repo, key));
+    }
+
+    @Override
+    public CompletionStage<byte[]> readAsync(String repo, String key) {
+        return fetchAsync(repo, key).thenCompose(local -> ProblemConnection.offloaded(() -> Files.readAllBytes(local)));
+    }
+
+    @Override
+    public CompletionStage<LazyFileMap> readFilesAsync(String repo, String key) {
+        return fetchAsync(repo, key).thenCompose(local -> ProblemConnection.offloaded(() -> LazyFileMap.open(local)));
+    }
+
+    @Override
+    public byte[] readSidecar(String repo, String key, String name) throws IOException {
+        String objectKey = sidecarKey(repo, key, name);
+        HttpResponse<byte[]> response = send(request("GET", objectKey, Map.of(), null, Map.of()), 
+            HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() == 404) return null;
+        if (!ok(response)) throw failure(response);
+        return response.body();
+    }
+
+    @Override
+    public void writeSidecar(byte[] contents, String repo, String key, String name) throws IOException {
+        String objectKey = sidecarKey(repo, key, name);
+        HttpResponse<byte[]> response = send(request("PUT", objectKey, Map.of(), contents, Map.of()), 
+            HttpResponse.BodyHandlers.ofByteArray());
+        if (!ok(response)) throw failure(response);
+    }
 }
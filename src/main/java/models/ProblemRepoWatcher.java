@@ -0,0 +1,177 @@
+package models;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * Watches the local problem repository for problem zip files that are changed behind our
+ * back (for example by rsync), and drops them from the problem cache. Writes through
+ * ProblemConnector invalidate the cache themselves.
+ *
+ * Bursts of events for a file are debounced, and the cache entry is only dropped if the
+ * modification time or size of the file actually changed.
+ */
+@Singleton
+public class ProblemRepoWatcher {
+    private static final Logger logger = Logger.getLogger(ProblemRepoWatcher.class);
+
+    private final ProblemCache cache;
+    private final Path root;
+    private final boolean enabled;
+    private final long debounceMillis;
+    private WatchService watchService;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private final Map<Path, Snapshot> seen = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "problem-repo-debounce");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    private record Snapshot(long modified, long size) {}
+
+    @Inject
+    public ProblemRepoWatcher(ProblemCache cache,
+            @ConfigProperty(name = "com.horstmann.codecheck.s3.local") String localPath,
+            @ConfigProperty(name = "com.horstmann.codecheck.repo.store", defaultValue = "zip") String store,
+            @ConfigProperty(name = "com.horstmann.codecheck.repo.watch", defaultValue = "true") boolean watch,
+            @ConfigProperty(name = "com.horstmann.codecheck.repo.watch.debounceMillis", defaultValue = "500") long debounceMillis) {
+        this.cache = cache;
+        this.root = Path.of(localPath);
+        // Blobs are content-addressed and manifests are only written by us. S3 objects aren't in the local repository.
+        this.enabled = watch && !store.equals("blob") && !store.equals("s3");
+        this.debounceMillis = debounceMillis;
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        if (!enabled) return;
+        try {
+            watchService = root.getFileSystem().newWatchService();
+            register(root);
+            try (DirectoryStream<Path> repos = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path repo : repos) register(repo);
+            }
+        } catch (IOException ex) {
+            logger.error("Cannot watch " + root.toAbsolutePath() + ", changes outside the application won't be noticed", ex);
+            return;
+        }
+        Thread thread = new Thread(this::watch, "problem-repo-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        scheduler.shutdownNow();
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            logger.warn("Cannot close watch service", ex);
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        directories.put(key, dir);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    events.incrementAndGet();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so we can't tell which problems changed
+                        overflows.incrementAndGet();
+                        seen.clear();
+                        cache.clear();
+                        continue;
+                    }
+                    if (dir == null) continue;
+                    Path path = dir.resolve((Path) event.context());
+                    if (dir.equals(root)) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                            try {
+                                register(path);
+                            } catch (IOException ex) {
+                                logger.warn("Cannot watch " + path.toAbsolutePath(), ex);
+                            }
+                        }
+                    } else if (path.getFileName().toString().endsWith(".zip"))
+                        schedule(path);
+                }
+                if (!key.reset()) directories.remove(key);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Shutting down
+        }
+    }
+
+    private void schedule(Path path) {
+        pending.compute(path, (p, previous) -> {
+            if (previous != null) previous.cancel(false);
+            return scheduler.schedule(() -> check(p), debounceMillis, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void check(Path path) {
+        pending.remove(path);
+        Snapshot current = null;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            current = new Snapshot(attrs.lastModifiedTime().toMillis(), attrs.size());
+        } catch (IOException ex) {
+            // Deleted
+        }
+        Snapshot previous = current == null ? seen.remove(path) : seen.put(path, current);
+        if (current != null && current.equals(previous)) return; // Touched, but not changed
+        String repo = root.relativize(path.getParent()).toString();
+        String fileName = path.getFileName().toString();
+        String key = fileName.substring(0, fileName.length() - ".zip".length());
+        logger.debug("Problem " + repo + "/" + key + " changed on disk");
+        invalidations.incrementAndGet();
+        cache.invalidate(repo, key);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("directories", directories.size());
+        result.put("events", events.get());
+        result.put("invalidations", invalidations.get());
+        result.put("overflows", overflows.get());
+        return result;
+    }
+}
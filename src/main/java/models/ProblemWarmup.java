@@ -0,0 +1,176 @@
+package models;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.horstmann.codecheck.LazyFileMap;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * Loads the problems that are likely to be requested into the problem cache, parses them,
+ * and reads their saved solution outputs, so that the first students after a deploy don't
+ * pay for it. The problems come from com.horstmann.codecheck.warmup.problems (repo/problem,
+ * comma-separated) and from the hottest problems of the previous run, which are saved in
+ * com.horstmann.codecheck.warmup.statsFile at shutdown.
+ */
+@Singleton
+public class ProblemWarmup {
+    private static final Logger logger = Logger.getLogger(ProblemWarmup.class);
+
+    private final ProblemConnector probConn;
+    private final ProblemCache cache;
+    private final SolutionOutputStore outputStore;
+    private final List<String> configured;
+    private final Optional<String> statsFile;
+    private final int hottest;
+    private final ExecutorService executor;
+
+    private CompletableFuture<Void> current;
+    private volatile boolean ready;
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile long millis;
+
+    @Inject
+    public ProblemWarmup(ProblemConnector probConn, ProblemCache cache, SolutionOutputStore outputStore,
+            @ConfigProperty(name = "com.horstmann.codecheck.warmup.problems") Optional<List<String>> configured,
+            @ConfigProperty(name = "com.horstmann.codecheck.warmup.statsFile") Optional<String> statsFile,
+            @ConfigProperty(name = "com.horstmann.codecheck.warmup.hottest", defaultValue = "100") int hottest,
+            @ConfigProperty(name = "com.horstmann.codecheck.warmup.threads", defaultValue = "4") int threads) {
+        this.probConn = probConn;
+        this.cache = cache;
+        this.outputStore = outputStore;
+        this.configured = configured.orElse(List.of());
+        this.statsFile = statsFile;
+        this.hottest = hottest;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "problem-warmup");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        Set<String> keys = new LinkedHashSet<>(configured);
+        keys.addAll(readStats());
+        warmup(new ArrayList<>(keys)).whenComplete((result, ex) -> ready = true);
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        executor.shutdownNow();
+        if (statsFile.isEmpty()) return;
+        try {
+            Path path = Path.of(statsFile.get());
+            Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "warmup", ".tmp");
+            Files.write(temp, cache.hottest(hottest), StandardCharsets.UTF_8);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.warn("Cannot save warm-up statistics", ex);
+        }
+    }
+
+    private List<String> readStats() {
+        if (statsFile.isEmpty()) return List.of();
+        Path path = Path.of(statsFile.get());
+        if (!Files.exists(path)) return List.of();
+        try {
+            return Files.readAllLines(path, StandardCharsets.UTF_8).stream().map(String::strip).filter(s -> !s.isEmpty()).toList();
+        } catch (IOException ex) {
+            logger.warn("Cannot read warm-up statistics", ex);
+            return List.of();
+        }
+    }
+
+    /**
+     * Warms up the given problems, unless a warm-up is already running.
+     * @param keys problems of the form repo/problem
+     * @return the warm-up, or null if another one is running
+     */
+    public synchronized CompletableFuture<Void> warmup(List<String> keys) {
+        if (current != null && !current.isDone()) return null;
+        long start = System.currentTimeMillis();
+        loaded.set(0);
+        failed.set(0);
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (String k : keys)
+            tasks.add(CompletableFuture.runAsync(() -> warmup(k), executor));
+        current = CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+            .whenComplete((result, ex) -> {
+                millis = System.currentTimeMillis() - start;
+                logger.infof("Warmed up %d problems in %d ms, %d failed", loaded.get(), millis, failed.get());
+            });
+        return current;
+    }
+
+    /**
+     * Warms up the hottest problems since startup, as well as the configured ones.
+     */
+    public CompletableFuture<Void> warmup() {
+        Set<String> keys = new LinkedHashSet<>(configured);
+        keys.addAll(cache.hottest(hottest));
+        return warmup(new ArrayList<>(keys));
+    }
+
+    private void warmup(String k) {
+        int n = k.lastIndexOf('/');
+        if (n <= 0) {
+            logger.warn("Cannot warm up " + k + ", expected repo/problem");
+            failed.incrementAndGet();
+            return;
+        }
+        String repo = k.substring(0, n);
+        String problem = k.substring(n + 1);
+        try {
+            LazyFileMap problemFiles = probConn.readFiles(repo, problem);
+            if (CodeCheck.usesStoredOutputs(problemFiles)) {
+                probConn.readProblem(repo, problem, problemFiles);
+                outputStore.read(repo, problem, problemFiles.hash());
+            }
+            loaded.incrementAndGet();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            logger.warn("Cannot warm up " + k, ex);
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true once the warm-up at startup has completed
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("ready", ready);
+        result.put("running", current != null && !current.isDone());
+        result.put("loaded", loaded.get());
+        result.put("failed", failed.get());
+        result.put("millis", millis);
+        return result;
+    }
+}
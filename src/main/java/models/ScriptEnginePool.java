@@ -0,0 +1,232 @@
+package models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.horstmann.codecheck.Util;
+
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * A pool of Nashorn engines for instantiating parametric problems. Each engine that is
+ * handed out has a fresh global scope in which preload.js has already been evaluated, so
+ * that nothing that one student's param.js did is visible to the next. After an engine
+ * is returned, its scope is replaced in the background. Since preload.js and the param.js
+ * scripts are compiled once per engine, preparing a fresh scope only runs them.
+ */
+@Singleton
+public class ScriptEnginePool {
+    private static final Logger logger = Logger.getLogger(ScriptEnginePool.class);
+    private static final int MAX_COMPILED = 256; // param.js scripts per engine
+
+    private final int size;
+    private final long borrowTimeoutMillis;
+    private final ScriptEngineManager engineManager = new ScriptEngineManager();
+    private final BlockingQueue<PooledEngine> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final ExecutorService refresher;
+    private String preload;
+    private final ReentrantLock preloadLock = new ReentrantLock();
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong(); // borrows that found no idle engine
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong compiles = new AtomicLong();
+    private final AtomicLong compileHits = new AtomicLong();
+
+    private class PooledEngine {
+        final ScriptEngine engine;
+        final CompiledScript preloadScript;
+        final Map<String, CompiledScript> compiled = new LinkedHashMap<>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > MAX_COMPILED;
+            }
+        };
+
+        PooledEngine() throws ScriptException, IOException {
+            engine = engineManager.getEngineByName("nashorn");
+            if (engine == null) throw new ScriptException("Nashorn script engine not available");
+            preloadScript = ((Compilable) engine).compile(preload());
+            reset();
+        }
+
+        /**
+         * Replaces the global scope with a fresh one in which preload.js has been evaluated.
+         */
+        void reset() throws ScriptException {
+            engine.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+            preloadScript.eval();
+        }
+    }
+
+    /**
+     * An engine that was borrowed from the pool. Close it to give it back.
+     */
+    public class Lease implements AutoCloseable {
+        private final PooledEngine pooled;
+        private boolean closed;
+
+        private Lease(PooledEngine pooled) {
+            this.pooled = pooled;
+        }
+
+        public ScriptEngine engine() {
+            return pooled.engine;
+        }
+
+        /**
+         * Yields the compiled script, compiling it only if this engine hasn't seen it before.
+         */
+        public CompiledScript compile(String script) throws ScriptException {
+            String hash = Util.hash(script.getBytes(StandardCharsets.UTF_8));
+            CompiledScript result = pooled.compiled.get(hash);
+            if (result != null) {
+                compileHits.incrementAndGet();
+                return result;
+            }
+            compiles.incrementAndGet();
+            result = ((Compilable) pooled.engine).compile(script);
+            pooled.compiled.put(hash, result);
+            return result;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            release(pooled);
+        }
+    }
+
+    @Inject
+    public ScriptEnginePool(
+            @ConfigProperty(name = "com.horstmann.codecheck.scripts.poolSize", defaultValue = "4") int size,
+            @ConfigProperty(name = "com.horstmann.codecheck.scripts.borrowTimeoutMillis", defaultValue = "30000") long borrowTimeoutMillis) {
+        this.size = size;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        idle = new ArrayBlockingQueue<>(size);
+        refresher = Executors.newFixedThreadPool(size, r -> {
+            Thread t = new Thread(r, "script-engine-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        refresher.shutdownNow();
+    }
+
+    private String preload() throws IOException {
+        // A lock, not synchronized, since reading the resource would pin a virtual thread
+        preloadLock.lock();
+        try {
+            if (preload == null) {
+                InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream("public/resources/preload.js");
+                if (in == null) throw new IOException("Cannot find preload.js");
+                try (in) {
+                    preload = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+            return preload;
+        } finally {
+            preloadLock.unlock();
+        }
+    }
+
+    public Lease borrow() throws ScriptException, IOException {
+        borrows.incrementAndGet();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        boolean waited = false;
+        try {
+            while (true) {
+                PooledEngine pooled = idle.poll();
+                if (pooled != null) return new Lease(pooled);
+                if (created.incrementAndGet() <= size) {
+                    try {
+                        return new Lease(new PooledEngine());
+                    } catch (ScriptException | IOException | RuntimeException ex) {
+                        created.decrementAndGet();
+                        throw ex;
+                    }
+                }
+                created.decrementAndGet();
+                if (!waited) {
+                    waited = true;
+                    waits.incrementAndGet();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new ScriptException("Timed out waiting for a script engine");
+                }
+                // Wake up now and then in case an engine was discarded and another one can be created
+                pooled = idle.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
+                if (pooled != null) return new Lease(pooled);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a script engine");
+        } finally {
+            if (waited) {
+                long waitedNanos = System.nanoTime() - start;
+                waitNanos.addAndGet(waitedNanos);
+                maxWaitNanos.accumulateAndGet(waitedNanos, Math::max);
+            }
+        }
+    }
+
+    private void release(PooledEngine pooled) {
+        refresher.execute(() -> {
+            try {
+                pooled.reset();
+                idle.offer(pooled);
+            } catch (ScriptException | RuntimeException ex) {
+                logger.warn("Cannot reset script engine, discarding it", ex);
+                created.decrementAndGet();
+            }
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", size);
+        result.put("created", created.get());
+        result.put("idle", idle.size());
+        result.put("borrows", borrows.get());
+        result.put("waits", waits.get());
+        result.put("waitMillis", waitNanos.get() / 1_000_000);
+        result.put("maxWaitMillis", maxWaitNanos.get() / 1_000_000);
+        result.put("timeouts", timeouts.get());
+        result.put("compiles", compiles.get());
+        result.put("compileHits", compileHits.get());
+        return result;
+    }
+}
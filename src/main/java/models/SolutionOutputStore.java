@@ -0,0 +1,107 @@
+package models;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.horstmann.codecheck.Util;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * Saves the outputs of compiling and running a problem's solution in a sidecar next to
+ * the problem, keyed by the problem's content hash, so that an edited problem never sees
+ * stale outputs. Only one request at a time computes the outputs for a problem version;
+ * the others wait for it.
+ */
+@Singleton
+public class SolutionOutputStore {
+    private static final int MAX_CACHED = 256;
+    private static final long WAIT_MILLIS = 60000;
+
+    private final ProblemConnector probConn;
+    private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong computed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final Map<String, Map<Path, byte[]>> cached = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Map<Path, byte[]>> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    @Inject
+    public SolutionOutputStore(ProblemConnector probConn) {
+        this.probConn = probConn;
+    }
+
+    private static String sidecarName(String hash) {
+        return "outputs-" + hash + ".zip";
+    }
+
+    /**
+     * Yields the saved outputs. If another request is computing them, waits for it first.
+     * @return the outputs, or null if they have not been saved
+     */
+    public Map<Path, byte[]> read(String repo, String key, String hash) throws IOException, InterruptedException {
+        String id = repo + "/" + key + "/" + hash;
+        CompletableFuture<Void> pending = inFlight.get(id);
+        if (pending != null) {
+            coalesced.incrementAndGet();
+            try {
+                pending.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException ex) {
+                // Proceed without waiting any longer
+            }
+        }
+        Map<Path, byte[]> outputs;
+        synchronized (cached) {
+            outputs = cached.get(id);
+        }
+        if (outputs != null) return outputs;
+        byte[] zip = probConn.readSidecar(repo, key, sidecarName(hash));
+        if (zip == null) return null;
+        outputs = Util.unzip(zip);
+        synchronized (cached) {
+            cached.put(id, outputs);
+        }
+        return outputs;
+    }
+
+    /**
+     * Claims the right to compute and write the outputs.
+     * @return true if the caller should write the outputs, and then must call release
+     */
+    public boolean claim(String repo, String key, String hash) {
+        boolean claimed = inFlight.putIfAbsent(repo + "/" + key + "/" + hash, new CompletableFuture<>()) == null;
+        if (claimed) computed.incrementAndGet();
+        return claimed;
+    }
+
+    public void write(String repo, String key, String hash, Map<Path, byte[]> outputs) throws IOException {
+        probConn.writeSidecar(Util.zip(outputs), repo, key, sidecarName(hash));
+        synchronized (cached) {
+            cached.put(repo + "/" + key + "/" + hash, outputs);
+        }
+    }
+
+    public void release(String repo, String key, String hash) {
+        CompletableFuture<Void> pending = inFlight.remove(repo + "/" + key + "/" + hash);
+        if (pending != null) pending.complete(null);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("computed", computed.get());
+        result.put("coalesced", coalesced.get());
+        result.put("inFlight", inFlight.size());
+        return result;
+    }
+}
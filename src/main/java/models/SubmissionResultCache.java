@@ -0,0 +1,123 @@
+package models;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.horstmann.codecheck.Main;
+import com.horstmann.codecheck.Util;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * An LRU cache of reports for submissions that were graded before, bounded by the total
+ * number of bytes held. Students press "check" again without changing anything, and
+ * autograders retry, so that a submission that is byte-identical to an earlier one for the
+ * same problem version and student gets the earlier report. The Submission and Time comments
+ * are regenerated, so that each report still has a unique ID and the current time.
+ */
+@Singleton
+public class SubmissionResultCache {
+    private static class Result {
+        final String report;
+        final String submissionId;
+        final String time;
+
+        Result(String report, String submissionId, String time) {
+            this.report = report;
+            this.submissionId = submissionId;
+            this.time = time;
+        }
+
+        long weight() {
+            return 2L * report.length() + 128;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Result> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Inject
+    public SubmissionResultCache(@ConfigProperty(name = "com.horstmann.codecheck.results.maxBytes", defaultValue = "67108864") long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Computes the key of a submission. The student ID is a part of it since it is shown in the
+     * report, and parametric problems are instantiated for it.
+     * @param problemHash the content hash of the problem
+     */
+    public static String key(String reportType, String repo, String problem, String problemHash, String ccid,
+            Map<Path, String> submissionFiles) {
+        MessageDigest digest = Util.sha256();
+        digest.update(String.join("\n", reportType, repo, problem, problemHash, ccid).getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<Path, String> entry : new TreeMap<>(submissionFiles).entrySet()) {
+            byte[] contents = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            digest.update(("\n" + entry.getKey() + "\n" + contents.length + "\n").getBytes(StandardCharsets.UTF_8));
+            digest.update(contents);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return the report with a new submission ID and time, or null if there is none
+     */
+    public String get(String key) {
+        Result result;
+        synchronized (this) {
+            result = entries.get(key);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // The ID is random and the time down to the second, so they don't occur elsewhere in the report
+        return result.report.replace(result.submissionId, Util.createPrivateUID())
+            .replace(result.time, Main.currentTime());
+    }
+
+    /**
+     * @param submissionId the ID in the Submission comment of the report
+     * @param time the time in the Time comment of the report
+     */
+    public synchronized void put(String key, String report, String submissionId, String time) {
+        if (report == null || submissionId == null || time == null) return;
+        Result result = new Result(report, submissionId, time);
+        if (result.weight() > maxBytes) return;
+        Result previous = entries.put(key, result);
+        if (previous != null) totalBytes -= previous.weight();
+        totalBytes += result.weight();
+        Iterator<Result> iter = entries.values().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Result eldest = iter.next();
+            iter.remove();
+            totalBytes -= eldest.weight();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        result.put("entries", entries.size());
+        result.put("bytes", totalBytes);
+        result.put("maxBytes", maxBytes);
+        return result;
+    }
+}
@@ -1,27 +1,32 @@
 package services;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 import javax.script.ScriptException;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.horstmann.codecheck.Util;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.core.MultivaluedMap;
 import models.CodeCheck;
+import models.GradingScheduler;
 
 @ApplicationScoped
 public class CheckService {
@@ -39,6 +44,18 @@ public class CheckService {
         return report;
     }
     
+    public CompletionStage<String> checkHTMLAsync(String repo, String problem, String ccid, Map<Path, String> submissionFiles, 
+            GradingScheduler scheduler) {
+        long startTime = System.nanoTime();
+        return codeCheck.runAsync("html", repo, problem, ccid, submissionFiles, scheduler).thenApply(report -> {
+            if (report == null || report.length() == 0) {
+                double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
+                report = String.format("Timed out after %5.0f seconds\n", elapsed);
+            }
+            return report;
+        });
+    }
+    
     public String run(Map<Path, String> submissionFiles)
             throws NoSuchMethodException, IOException, InterruptedException, ScriptException {
         long startTime = System.nanoTime();
@@ -86,16 +103,82 @@ public class CheckService {
 
     public ObjectNode checkNJS(String repo, String problem, String ccid, Map<Path, String> submissionFiles)
             throws NoSuchMethodException, IOException, InterruptedException, ScriptException {
-        ObjectNode studentWork = JsonNodeFactory.instance.objectNode();
+        Map<Path, byte[]> reportZipFiles = reportZipFiles(submissionFiles);
+        String report = codeCheck.run("NJS", repo, problem, ccid, submissionFiles);
+        return njsResult(report, reportZipFiles);
+    }
+
+    public CompletionStage<ObjectNode> checkNJSAsync(String repo, String problem, String ccid, Map<Path, String> submissionFiles,
+            GradingScheduler scheduler) {
+        Map<Path, byte[]> reportZipFiles = reportZipFiles(submissionFiles);
+        return codeCheck.runAsync("NJS", repo, problem, ccid, submissionFiles, scheduler).thenApply(report -> {
+            try {
+                return njsResult(report, reportZipFiles);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    /**
+     * Grades the submissions of a batch, and writes a line of JSON for each of them when it is graded,
+     * with its index and id, and either the report or the error. NJS reports have the signed zip, as in checkNJS.
+     * @param json has the repo, problem, optional reportType (default JSON), and an array of 
+     * submissions, each with an optional id and ccid, and the files
+     */
+    public void checkBatch(JsonNode json, GradingScheduler scheduler, OutputStream out)
+            throws IOException, InterruptedException {
+        String reportType = json.path("reportType").asText("JSON");
+        List<String> ids = new ArrayList<>();
+        List<String> ccids = new ArrayList<>();
+        List<Map<Path, String>> submissions = new ArrayList<>();
+        for (JsonNode submission : json.path("submissions")) {
+            ids.add(submission.path("id").asText(null));
+            ccids.add(submission.hasNonNull("ccid") ? submission.get("ccid").asText() : Util.createPronouncableUID());
+            Map<Path, String> submissionFiles = new TreeMap<>();
+            submission.path("files").fields().forEachRemaining(entry -> 
+                submissionFiles.put(Paths.get(entry.getKey()), entry.getValue().asText()));
+            submissions.add(submissionFiles);
+        }
+        CodeCheck.BatchListener listener = (index, report, error) -> {
+            ObjectNode line = mapper.createObjectNode();
+            line.put("index", index);
+            line.put("id", ids.get(index));
+            if (error != null) {
+                if (error instanceof GradingScheduler.OverloadedException)
+                    line.put("status", ((GradingScheduler.OverloadedException) error).getStatus());
+                line.put("error", error.getMessage());
+            } else {
+                try {
+                    if (reportType.equals("NJS"))
+                        line.set("report", njsResult(report, reportZipFiles(submissions.get(index))));
+                    else if (reportType.equals("JSON"))
+                        line.set("report", mapper.readTree(report));
+                    else
+                        line.put("report", report);
+                } catch (IOException | RuntimeException ex) {
+                    // Only this submission is affected. Exceptions that end the batch are for failed writes.
+                    line.put("error", ex.getMessage());
+                }
+            }
+            out.write(mapper.writeValueAsBytes(line));
+            out.write('\n');
+            out.flush();
+        };
+        codeCheck.runBatch(reportType, json.path("repo").asText("ext"), json.path("problem").asText(), ccids, submissions,
+            scheduler, listener);
+    }
+
+    private Map<Path, byte[]> reportZipFiles(Map<Path, String> submissionFiles) {
         Map<Path, byte[]> reportZipFiles = new TreeMap<>();
         for (var e : submissionFiles.entrySet()) {
             Path p = e.getKey();
-            submissionFiles.put(p, e.getValue());
             reportZipFiles.put(p, e.getValue().getBytes(StandardCharsets.UTF_8));
-            studentWork.put(p.toString(), e.getValue());
         }
+        return reportZipFiles;
+    }
 
-        String report = codeCheck.run("NJS", repo, problem, ccid, submissionFiles);
+    private ObjectNode njsResult(String report, Map<Path, byte[]> reportZipFiles) throws IOException {
         ObjectNode result = (ObjectNode) mapper.readTree(report);
         String reportHTML = result.get("report").asText();
         reportZipFiles.put(Paths.get("report.html"), reportHTML.getBytes(StandardCharsets.UTF_8));